@@ -0,0 +1,567 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles the admin pages, which let the site owner reload templates, a
+ * story, or the index without restarting. Reloads run in the background,
+ * one at a time and not too often; the status page (/ADMIN/) shows their
+ * progress along with cache statistics.
+ * <p>
+ * Admin requests are only accepted from the configured addresses, or with
+ * the configured token (as an X-Picstory-Token header or a token field in a
+ * POST body; never in the URL, where it would end up in logs). If neither is
+ * configured, the admin pages don't exist.
+ * <p>
+ * Every POST must also carry the token, or the random form key from the
+ * status page, so that another site can't make an allowed browser start a
+ * reload.
+ */
+public class AdminHandler extends RequestHandler
+{
+	/**
+	 * Path of status page.
+	 */
+	final static String PATH_STATUS = "/ADMIN/";
+
+	/**
+	 * Path that starts a reload (POST only).
+	 */
+	final static String PATH_RELOAD = "/ADMIN/reload";
+
+	/**
+	 * Minimum time in milliseconds between starting reloads.
+	 */
+	private final static long MIN_INTERVAL = 10000L;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * What to reload.
+	 */
+	private enum Scope
+	{
+		/** Templates and resources. */
+		TEMPLATES("Templates and resources"),
+		/** A single story. */
+		STORY("Story"),
+		/** The index. */
+		INDEX("Index");
+
+		private String description;
+		Scope(String description)
+		{
+			this.description = description;
+		}
+	}
+
+	/**
+	 * A reload, which also receives progress if it rebuilds the index.
+	 */
+	private class Job implements Runnable, IndexHandler.Progress
+	{
+		private Scope scope;
+		private String storyName;
+		private long started = System.currentTimeMillis();
+		private volatile long finished;
+		private volatile int count;
+		private volatile String current, error;
+
+		/**
+		 * @param scope What to reload
+		 * @param storyName Story name (STORY scope only)
+		 */
+		Job(Scope scope, String storyName)
+		{
+			this.scope = scope;
+			this.storyName = storyName;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				MainServlet main = getMainServlet();
+				switch(scope)
+				{
+				case TEMPLATES:
+					main.getTemplates().reload();
+					resources.reload();
+					index.changed();
+					break;
+				case STORY:
+					current = storyName;
+					main.getStories().getStory(storyName, true);
+					story.changed(storyName);
+					index.changed();
+					break;
+				case INDEX:
+					index.reload(this);
+					break;
+				}
+			}
+			catch(Throwable t)
+			{
+				error(t);
+			}
+			finally
+			{
+				finished = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Records and logs an error.
+		 * @param t Error
+		 */
+		private void error(Throwable t)
+		{
+			error = t.getMessage() == null ? t.toString() : t.getMessage();
+			System.err.println("picstory: Reload failed (" + scope + ")");
+			t.printStackTrace();
+		}
+
+		@Override
+		public void start()
+		{
+		}
+
+		@Override
+		public void update(String storyName)
+		{
+			count++;
+			current = storyName;
+		}
+
+		@Override
+		public void finish(Throwable t)
+		{
+			if(t != null)
+			{
+				error(t);
+			}
+		}
+
+		/**
+		 * @return True if the job hasn't finished yet
+		 */
+		boolean isRunning()
+		{
+			return finished == 0L;
+		}
+
+		/**
+		 * @return Description of the job and its progress, as XHTML
+		 */
+		String getXhtml()
+		{
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			StringBuilder out = new StringBuilder();
+			out.append("<p>" + scope.description);
+			if(storyName != null)
+			{
+				out.append(" '" + Util.esc(storyName) + "'");
+			}
+			out.append(", started " + format.format(new Date(started)) + ": ");
+			long end = finished;
+			if(end == 0L)
+			{
+				out.append("running for "
+					+ (System.currentTimeMillis() - started) / 1000L + " s");
+				if(current != null)
+				{
+					out.append(" (" + (scope == Scope.INDEX ? count + " stories, " : "")
+						+ "now on '" + Util.esc(current) + "')");
+				}
+			}
+			else if(error != null)
+			{
+				out.append("failed after " + (end - started) / 1000L + " s: "
+					+ Util.esc(error));
+			}
+			else
+			{
+				out.append("finished in " + (end - started) / 1000L + " s");
+				if(scope == Scope.INDEX)
+				{
+					out.append(" (" + count + " stories)");
+				}
+			}
+			out.append(".</p>");
+			return out.toString();
+		}
+	}
+
+	private ResourceHandler resources;
+	private StoryHandler story;
+	private IndexHandler index;
+	private File storyRoot;
+
+	private byte[] token;
+	private Set<String> addresses = new HashSet<String>();
+
+	/**
+	 * Random value included in the status page forms and required (if there's
+	 * no token) on every POST.
+	 */
+	private String formKey;
+
+	/**
+	 * Runs reloads in the background.
+	 */
+	private ExecutorService pool = Executors.newSingleThreadExecutor(
+		new StoryCache.DaemonThreadFactory("picstory-admin-"));
+
+	/**
+	 * Most recent reload, or null if none. Only replaced with lock held.
+	 */
+	private volatile Job job;
+
+	/**
+	 * @param mainServlet Main servlet
+	 * @param resources Resource handler
+	 * @param story Story handler
+	 * @param index Index handler
+	 * @param storyRoot Root folder for stories
+	 * @param token Token that allows access, or null/empty for none
+	 * @param addresses Addresses that are allowed access without a token,
+	 *   separated by commas or spaces (null/empty for none)
+	 */
+	public AdminHandler(MainServlet mainServlet, ResourceHandler resources,
+		StoryHandler story, IndexHandler index, File storyRoot, String token,
+		String addresses)
+	{
+		super(mainServlet);
+		this.resources = resources;
+		this.story = story;
+		this.index = index;
+		this.storyRoot = storyRoot;
+		if(token != null && token.trim().length() > 0)
+		{
+			this.token = token.trim().getBytes(UTF8);
+		}
+		if(addresses != null)
+		{
+			for(String address : addresses.split("[,\\s]+"))
+			{
+				if(address.length() > 0)
+				{
+					this.addresses.add(address);
+				}
+			}
+		}
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		formKey = Util.toHex(random);
+	}
+
+	/**
+	 * Stops the background thread. Call when the servlet is destroyed.
+	 */
+	public void close()
+	{
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param path Request path
+	 * @return True if this is an admin path
+	 */
+	public static boolean isAdminPath(String path)
+	{
+		return path.startsWith(PATH_STATUS);
+	}
+
+	/**
+	 * Handles a request for an admin page.
+	 * @param r Request
+	 * @param path Request path
+	 * @throws UserException Not allowed, not found, etc
+	 * @throws IOException Any I/O error
+	 */
+	public void handle(Request r, String path) throws UserException, IOException
+	{
+		boolean post = r.getRequest().getMethod().equals("POST");
+		if((token == null && addresses.isEmpty())
+			|| !(path.equals(PATH_STATUS) || path.equals(PATH_RELOAD)))
+		{
+			throw new UserException(HttpServletResponse.SC_NOT_FOUND,
+				"Path '" + Util.esc(path) + "' not found");
+		}
+		if(!isAllowed(r) || (post && !hasToken(r) && !hasFormKey(r)))
+		{
+			if(token != null && path.equals(PATH_STATUS) && !post)
+			{
+				// Let people with the token type it in
+				getMainServlet().sendPage(r, HttpServletResponse.SC_FORBIDDEN,
+					"admin", "Administration", ("<h1>Administration</h1>\n\n"
+					+ getTokenForm("Log in")).getBytes(UTF8));
+				return;
+			}
+			throw new UserException(HttpServletResponse.SC_FORBIDDEN,
+				"Access denied");
+		}
+		if(path.equals(PATH_RELOAD) && !post)
+		{
+			r.getResponse().setHeader("Allow", "POST");
+			throw new UserException(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+				"Method not allowed");
+		}
+
+		// POST to the status page just shows it (for people using the token
+		// box, as browsers can't send the header)
+		if(path.equals(PATH_RELOAD))
+		{
+			startReload(r);
+			sendStatus(r, HttpServletResponse.SC_ACCEPTED);
+		}
+		else
+		{
+			sendStatus(r, HttpServletResponse.SC_OK);
+		}
+	}
+
+	/**
+	 * @param r Request
+	 * @return True if the request comes from an allowed address or has the
+	 *   right token
+	 */
+	private boolean isAllowed(Request r)
+	{
+		return addresses.contains(r.getRequest().getRemoteAddr()) || hasToken(r);
+	}
+
+	/**
+	 * @param r Request
+	 * @return True if the request has the right token, in the header or the
+	 *   POST body
+	 */
+	private boolean hasToken(Request r)
+	{
+		if(token == null)
+		{
+			return false;
+		}
+		String supplied = r.getRequest().getHeader("X-Picstory-Token");
+		if(supplied == null)
+		{
+			supplied = getBodyParameter(r, "token");
+		}
+		return matches(token, supplied);
+	}
+
+	/**
+	 * @param r Request
+	 * @return True if the request has the form key from the status page in
+	 *   the POST body
+	 */
+	private boolean hasFormKey(Request r)
+	{
+		return matches(formKey.getBytes(UTF8), getBodyParameter(r, "key"));
+	}
+
+	/**
+	 * @param expected Expected value
+	 * @param supplied Supplied value (may be null)
+	 * @return True if they are the same
+	 */
+	private static boolean matches(byte[] expected, String supplied)
+	{
+		// Compare in constant time so the value can't be guessed bit by bit
+		return supplied != null
+			&& MessageDigest.isEqual(expected, supplied.getBytes(UTF8));
+	}
+
+	/**
+	 * Gets a parameter only if it was sent in the body of a POST (the servlet
+	 * API mixes these up with parameters from the URL).
+	 * @param r Request
+	 * @param name Parameter name
+	 * @return Value, or null if none or if it was in the URL
+	 */
+	private static String getBodyParameter(Request r, String name)
+	{
+		if(!r.getRequest().getMethod().equals("POST"))
+		{
+			return null;
+		}
+		String query = r.getRequest().getQueryString();
+		if(query != null)
+		{
+			for(String pair : query.split("&"))
+			{
+				if(pair.equals(name) || pair.startsWith(name + "="))
+				{
+					return null;
+				}
+			}
+		}
+		return r.getRequest().getParameter(name);
+	}
+
+	/**
+	 * Starts a reload, if one isn't running and there hasn't been one too
+	 * recently.
+	 * @param r Request
+	 * @throws UserException Invalid parameters, or too soon
+	 */
+	private void startReload(Request r) throws UserException
+	{
+		// Check parameters
+		Scope scope;
+		try
+		{
+			scope = Scope.valueOf(String.valueOf(
+				r.getRequest().getParameter("scope")).toUpperCase());
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new UserException(HttpServletResponse.SC_BAD_REQUEST,
+				"Scope must be templates, story, or index");
+		}
+		String storyName = null;
+		if(scope == Scope.STORY)
+		{
+			storyName = r.getRequest().getParameter("story");
+			if(storyName == null
+				|| !storyName.matches(MainServlet.REGEX_PART_LCNAME)
+				|| !new File(new File(storyRoot, storyName), "index.xml").exists())
+			{
+				throw new UserException(HttpServletResponse.SC_NOT_FOUND,
+					"Story '" + Util.esc(String.valueOf(storyName)) + "' not found");
+			}
+		}
+
+		synchronized(this)
+		{
+			Job last = job;
+			long wait = 0L;
+			if(last != null)
+			{
+				wait = last.isRunning() ? MIN_INTERVAL
+					: last.started + MIN_INTERVAL - System.currentTimeMillis();
+			}
+			if(wait > 0L)
+			{
+				r.getResponse().setHeader("Retry-After",
+					String.valueOf((wait + 999L) / 1000L));
+				throw new UserException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"A reload is running or has just finished; please wait");
+			}
+			job = new Job(scope, storyName);
+			pool.execute(job);
+		}
+	}
+
+	/**
+	 * Sends the status page.
+	 * @param r Request
+	 * @param statusCode Status code
+	 * @throws IOException Any I/O error
+	 * @throws InternalException Any other error
+	 */
+	private void sendStatus(Request r, int statusCode)
+		throws IOException, InternalException
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("<h1>Administration</h1>\n\n<h2>Reload</h2>\n\n");
+		Job last = job;
+		out.append(last == null ? "<p>No reloads since startup.</p>"
+			: last.getXhtml());
+		out.append("\n\n<form method=\"post\" action=\"reload\"><p>\n"
+			+ "<input type=\"hidden\" name=\"key\" value=\"" + formKey + "\" />\n"
+			+ "<select name=\"scope\">\n");
+		for(Scope scope : Scope.values())
+		{
+			out.append("<option value=\"" + scope.name().toLowerCase() + "\">"
+				+ scope.description + "</option>\n");
+		}
+		out.append("</select>\n"
+			+ "<input type=\"text\" name=\"story\" title=\"Story name\" />\n");
+		if(token != null)
+		{
+			out.append("<input type=\"password\" name=\"token\" title=\"Token\" />\n");
+		}
+		out.append("<input type=\"submit\" value=\"Reload\" />\n</p></form>\n\n");
+		if(token != null)
+		{
+			out.append(getTokenForm("Refresh"));
+		}
+
+		StoryCache stories = getMainServlet().getStories();
+		out.append("<h2>Story cache</h2>\n\n<table>\n");
+		addRow(out, "Stories in memory", stories.getStoryCount());
+		addRow(out, "Memory used (KB)", stories.getMemorySize() / 1024L);
+		addRow(out, "Hits", stories.getHits());
+		addRow(out, "Misses", stories.getMisses());
+		addRow(out, "Evictions", stories.getEvictions());
+		out.append("</table>\n");
+
+		VariantCache variants = story.getVariantCache();
+		if(variants.isEnabled())
+		{
+			out.append("\n<h2>Picture memory cache</h2>\n\n<table>\n");
+			addRow(out, "Pictures in memory", variants.getCount());
+			addRow(out, "Memory used (KB)", variants.getSize() / 1024L);
+			addRow(out, "Maximum (KB)", variants.getMaxSize() / 1024L);
+			addRow(out, "Hits", variants.getHits());
+			addRow(out, "Misses", variants.getMisses());
+			addRow(out, "Evictions", variants.getEvictions());
+			out.append("</table>\n");
+		}
+
+		// Status changes all the time, so don't let anyone keep it
+		r.getResponse().setHeader("Cache-Control", "no-store");
+		getMainServlet().sendPage(r, statusCode, "admin", "Administration",
+			out.toString().getBytes(UTF8));
+	}
+
+	/**
+	 * @param button Button label
+	 * @return Form that posts the token to the status page (browsers can't
+	 *   send the header)
+	 */
+	private static String getTokenForm(String button)
+	{
+		return "<form method=\"post\" action=\"./\"><p>\n"
+			+ "<input type=\"password\" name=\"token\" title=\"Token\" />\n"
+			+ "<input type=\"submit\" value=\"" + button + "\" />\n</p></form>\n\n";
+	}
+
+	/**
+	 * Adds a table row.
+	 * @param out Output
+	 * @param label Label
+	 * @param value Value
+	 */
+	private static void addRow(StringBuilder out, String label, long value)
+	{
+		out.append("<tr><th>" + label + "</th><td>" + value + "</td></tr>\n");
+	}
+}
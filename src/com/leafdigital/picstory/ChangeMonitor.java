@@ -0,0 +1,435 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Watches the story, template and resource folders and tells the rest of
+ * the system when something changes, so that requests don't need to check
+ * file dates. Uses the filesystem's change notification if possible. Some
+ * filesystems (such as network mounts) don't deliver those events, so it
+ * can instead poll file dates in the background. Even when using change
+ * notification, it checks the dates once a minute in case events are
+ * not arriving.
+ */
+class ChangeMonitor
+{
+	private final static Pattern REGEX_STORY = Pattern.compile(
+		MainServlet.REGEX_PART_LCNAME);
+
+	/**
+	 * Time in milliseconds between date checks when using change notification.
+	 */
+	private final static long WATCH_CHECK_INTERVAL = 60000L;
+
+	/**
+	 * Receives change notifications. These are called from the monitor thread.
+	 */
+	interface Listener
+	{
+		/**
+		 * Called when a story's index.xml changes, or its folder is created or
+		 * deleted.
+		 * @param storyName Story name, or null if anything might have changed
+		 */
+		void storyChanged(String storyName);
+
+		/**
+		 * Called when a file in the template folder changes.
+		 * @param filename Filename, or null if anything might have changed
+		 */
+		void templateChanged(String filename);
+
+		/**
+		 * Called when a file in the resource folder changes.
+		 * @param filename Filename, or null if anything might have changed
+		 */
+		void resourceChanged(String filename);
+	}
+
+	/**
+	 * Kind of folder being watched.
+	 */
+	private enum Kind
+	{
+		STORY_ROOT, STORY, TEMPLATES, RESOURCES
+	}
+
+	/**
+	 * A folder being watched.
+	 */
+	private static class Watched
+	{
+		private Kind kind;
+		private String storyName;
+
+		Watched(Kind kind, String storyName)
+		{
+			this.kind = kind;
+			this.storyName = storyName;
+		}
+	}
+
+	private File storyRoot, templateFolder, resourceFolder;
+	private Listener listener;
+	private long pollInterval;
+
+	private Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * Watch service, or null if polling.
+	 */
+	private WatchService watcher;
+
+	/**
+	 * Folders being watched (only accessed from the monitor thread once
+	 * started).
+	 */
+	private Map<WatchKey, Watched> watched = new HashMap<WatchKey, Watched>();
+
+	/**
+	 * @param storyRoot Root folder for stories
+	 * @param templateFolder Template folder
+	 * @param resourceFolder Resource folder
+	 * @param listener Receives changes
+	 * @param poll True to poll, false to use change notification if available
+	 * @param pollInterval Time between polls in milliseconds
+	 */
+	ChangeMonitor(File storyRoot, File templateFolder, File resourceFolder,
+		Listener listener, boolean poll, long pollInterval)
+	{
+		this.storyRoot = storyRoot;
+		this.templateFolder = templateFolder;
+		this.resourceFolder = resourceFolder;
+		this.listener = listener;
+		this.pollInterval = pollInterval;
+
+		if(!poll)
+		{
+			try
+			{
+				startWatching();
+			}
+			catch(Exception e)
+			{
+				System.err.println("picstory: Unable to watch for changes, "
+					+ "polling instead (" + e + ")");
+				stopWatching();
+			}
+		}
+
+		Runnable task;
+		final Map<String, Long> initial = scan();
+		if(watcher != null)
+		{
+			task = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					watch(initial);
+				}
+			};
+		}
+		else
+		{
+			task = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					poll(initial);
+				}
+			};
+		}
+		thread = new Thread(task, "picstory-monitor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops monitoring. Call when the servlet is destroyed.
+	 */
+	void close()
+	{
+		closed = true;
+		thread.interrupt();
+		stopWatching();
+	}
+
+	/**
+	 * Sets up the watch service and registers all folders.
+	 * @throws IOException Any error
+	 */
+	private void startWatching() throws IOException
+	{
+		watcher = FileSystems.getDefault().newWatchService();
+		register(templateFolder, new Watched(Kind.TEMPLATES, null));
+		register(resourceFolder, new Watched(Kind.RESOURCES, null));
+		register(storyRoot, new Watched(Kind.STORY_ROOT, null));
+		File[] folders = storyRoot.listFiles();
+		if(folders != null)
+		{
+			for(File folder : folders)
+			{
+				registerStory(folder);
+			}
+		}
+	}
+
+	/**
+	 * Closes the watch service, if any.
+	 */
+	private void stopWatching()
+	{
+		if(watcher != null)
+		{
+			try
+			{
+				watcher.close();
+			}
+			catch(IOException e)
+			{
+				// Nothing we can do
+			}
+		}
+	}
+
+	/**
+	 * @param folder Folder to watch
+	 * @param details What it is
+	 * @throws IOException Any error
+	 */
+	private void register(File folder, Watched details) throws IOException
+	{
+		WatchKey key = folder.toPath().register(watcher,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_DELETE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+		watched.put(key, details);
+	}
+
+	/**
+	 * Watches a story folder, if it looks like one.
+	 * @param folder Folder within story root
+	 * @throws IOException Any error
+	 */
+	private void registerStory(File folder) throws IOException
+	{
+		String name = folder.getName();
+		if(folder.isDirectory() && REGEX_STORY.matcher(name).matches())
+		{
+			register(folder, new Watched(Kind.STORY, name));
+		}
+	}
+
+	/**
+	 * Thread loop when using the watch service.
+	 * @param initial Initial file dates
+	 */
+	private void watch(Map<String, Long> initial)
+	{
+		Map<String, Long> previous = initial;
+		long nextCheck = System.currentTimeMillis() + WATCH_CHECK_INTERVAL;
+		while(!closed)
+		{
+			WatchKey key;
+			try
+			{
+				key = watcher.poll(Math.max(1L,
+					nextCheck - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			catch(ClosedWatchServiceException e)
+			{
+				return;
+			}
+
+			// Check dates as well now and then, in case the filesystem doesn't send
+			// events (anything already reported just gets reported again)
+			if(System.currentTimeMillis() >= nextCheck)
+			{
+				Map<String, Long> current = scan();
+				report(previous, current);
+				previous = current;
+				nextCheck = System.currentTimeMillis() + WATCH_CHECK_INTERVAL;
+			}
+			if(key == null)
+			{
+				continue;
+			}
+
+			Watched details = watched.get(key);
+			for(WatchEvent<?> event : key.pollEvents())
+			{
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW || details == null)
+				{
+					// Missed some events
+					listener.storyChanged(null);
+					listener.templateChanged(null);
+					listener.resourceChanged(null);
+					continue;
+				}
+				String name = ((Path)event.context()).toString();
+				switch(details.kind)
+				{
+				case STORY_ROOT:
+					if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+					{
+						try
+						{
+							registerStory(new File(storyRoot, name));
+						}
+						catch(IOException e)
+						{
+							System.err.println("picstory: Unable to watch story '"
+								+ name + "' (" + e + ")");
+						}
+					}
+					if(REGEX_STORY.matcher(name).matches())
+					{
+						listener.storyChanged(name);
+					}
+					break;
+				case STORY:
+					if(name.equals("index.xml"))
+					{
+						listener.storyChanged(details.storyName);
+					}
+					break;
+				case TEMPLATES:
+					listener.templateChanged(name);
+					break;
+				case RESOURCES:
+					listener.resourceChanged(name);
+					break;
+				}
+			}
+			if(!key.reset())
+			{
+				// Folder has gone
+				watched.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Thread loop when polling.
+	 * @param initial Initial file dates
+	 */
+	private void poll(Map<String, Long> initial)
+	{
+		Map<String, Long> previous = initial;
+		while(!closed)
+		{
+			try
+			{
+				Thread.sleep(pollInterval);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+
+			Map<String, Long> current = scan();
+			report(previous, current);
+			previous = current;
+		}
+	}
+
+	/**
+	 * Tells the listener about any differences between two scans.
+	 * @param previous Earlier file dates
+	 * @param current Current file dates
+	 */
+	private void report(Map<String, Long> previous, Map<String, Long> current)
+	{
+		Set<String> all = new HashSet<String>(previous.keySet());
+		all.addAll(current.keySet());
+		for(String key : all)
+		{
+			Long before = previous.get(key), after = current.get(key);
+			if(before == null || !before.equals(after))
+			{
+				String name = key.substring(2);
+				switch(key.charAt(0))
+				{
+				case 'S' : listener.storyChanged(name); break;
+				case 'T' : listener.templateChanged(name); break;
+				case 'R' : listener.resourceChanged(name); break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the dates of all monitored files. Keys are the filename (or story
+	 * name) preceded by S:, T: or R:.
+	 * @return Map from key to last modified date
+	 */
+	private Map<String, Long> scan()
+	{
+		Map<String, Long> dates = new HashMap<String, Long>();
+		File[] folders = storyRoot.listFiles();
+		if(folders != null)
+		{
+			for(File folder : folders)
+			{
+				if(REGEX_STORY.matcher(folder.getName()).matches())
+				{
+					long lastModified = new File(folder, "index.xml").lastModified();
+					if(lastModified != 0L)
+					{
+						dates.put("S:" + folder.getName(), lastModified);
+					}
+				}
+			}
+		}
+		scanFolder(dates, "T:", templateFolder);
+		scanFolder(dates, "R:", resourceFolder);
+		return dates;
+	}
+
+	/**
+	 * @param dates Map that receives dates of files
+	 * @param prefix Key prefix
+	 * @param folder Folder to scan
+	 */
+	private static void scanFolder(Map<String, Long> dates, String prefix,
+		File folder)
+	{
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				dates.put(prefix + file.getName(), file.lastModified());
+			}
+		}
+	}
+}
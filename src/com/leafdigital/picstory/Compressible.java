@@ -0,0 +1,118 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Data that is sent many times, so it is worth keeping a gzip-compressed
+ * version as well. The compressed version is made the first time somebody
+ * asks for it.
+ */
+class Compressible
+{
+	/**
+	 * Data smaller than this isn't worth compressing.
+	 */
+	private final static int MIN_LENGTH = 256;
+
+	/**
+	 * Marks data that doesn't get smaller when compressed.
+	 */
+	private final static byte[] NOT_SMALLER = new byte[0];
+
+	private byte[] data;
+	private volatile byte[] gzipped;
+
+	/**
+	 * @param data Data
+	 */
+	Compressible(byte[] data)
+	{
+		this.data = data;
+	}
+
+	/**
+	 * @return Data
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * @return Data compressed with gzip, or null if compression wouldn't
+	 *   make it smaller
+	 */
+	public byte[] getGzipped()
+	{
+		byte[] result = gzipped;
+		if(result == null)
+		{
+			// If two threads get here, they both compress it; that's fine
+			result = NOT_SMALLER;
+			if(data.length >= MIN_LENGTH)
+			{
+				byte[] compressed = gzip(data);
+				if(compressed.length < data.length)
+				{
+					result = compressed;
+				}
+			}
+			gzipped = result;
+		}
+		return result == NOT_SMALLER ? null : result;
+	}
+
+	/**
+	 * @return Approximate memory used by the data and compressed version
+	 */
+	public long getMemorySize()
+	{
+		byte[] compressed = gzipped;
+		return data.length + (compressed == null ? 0 : compressed.length);
+	}
+
+	/**
+	 * @param data Data
+	 * @return Data compressed as much as possible with gzip
+	 */
+	private static byte[] gzip(byte[] data)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+		try
+		{
+			GZIPOutputStream gzip = new GZIPOutputStream(out)
+			{
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			gzip.write(data);
+			gzip.close();
+		}
+		catch(IOException e)
+		{
+			// Can't happen with a ByteArrayOutputStream
+			throw new Error(e);
+		}
+		return out.toByteArray();
+	}
+}
@@ -22,6 +22,7 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -32,19 +33,35 @@ import org.w3c.dom.*;
  */
 public class IndexHandler extends RequestHandler
 {
-	private final static long CACHE_EXPIRY = 1L * 60L * 1000L;
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Sent after each progress update to make browsers show it straight away.
+	 */
+	private final static byte[] PROGRESS_PADDING = new byte[202];
+	static
+	{
+		Arrays.fill(PROGRESS_PADDING, (byte)' ');
+		PROGRESS_PADDING[0] = '\n';
+		PROGRESS_PADDING[PROGRESS_PADDING.length - 1] = '\n';
+	}
+
 	private File cacheRoot, storyRoot;
 	private XmlProcessors xml;
 	private Cache cache;
 
+	/**
+	 * Set by the change monitor when a story or template has changed.
+	 */
+	private volatile boolean changed;
+
 	/**
 	 * Information held about a single folder.
 	 */
 	private class Folder implements Comparable<Folder>
 	{
 		private long updated, date;
-		private String folder, error, title, thumbnailUrl;
-		private Element description;
+		private String folder, error, title, descriptionXml, thumbnailUrl;
 		private int thumbnailWidth, thumbnailHeight;
 
 		/**
@@ -66,20 +83,20 @@ public class IndexHandler extends RequestHandler
 		 * @param updated Updated date (from file)
 		 * @param date Specified date (from file), 0 if unknown
 		 * @param title Title of picstory
-		 * @param description Description of picstory
+		 * @param descriptionXml Description of picstory (XML)
 		 * @param thumbnailUrl URL of thumbnail picture for picstory
 		 * @param thumbnailWidth Width of thumbnail picture
 		 * @param thumbnailHeight Height of thumbnail picture
 		 */
 		Folder(String folder, long updated, long date, String title,
-			Element description, String thumbnailUrl,
+			String descriptionXml, String thumbnailUrl,
 			int thumbnailWidth, int thumbnailHeight)
 		{
 			this.folder = folder;
 			this.updated = updated;
 			this.date = date;
 			this.title = title;
-			this.description = description;
+			this.descriptionXml = descriptionXml;
 			this.thumbnailUrl = thumbnailUrl;
 			this.thumbnailWidth = thumbnailWidth;
 			this.thumbnailHeight = thumbnailHeight;
@@ -88,8 +105,10 @@ public class IndexHandler extends RequestHandler
 		/**
 		 * Adds this folder to an XML element.
 		 * @param root Element to receive folder child.
+		 * @throws InternalException Error parsing description
+		 * @throws IOException Unlikely error
 		 */
-		void add(Element root)
+		void add(Element root) throws InternalException, IOException
 		{
 			Document d = root.getOwnerDocument();
 			Element folderEl = d.createElement("folder");
@@ -105,9 +124,10 @@ public class IndexHandler extends RequestHandler
 				folderEl.setAttribute("title", title);
 			}
 
-			if(description != null)
+			if(descriptionXml != null)
 			{
-				folderEl.appendChild(d.importNode(description, true));
+				folderEl.appendChild(d.importNode(xml.parseString("description",
+					descriptionXml).getDocumentElement(), true));
 			}
 
 			if(date != 0)
@@ -167,17 +187,23 @@ public class IndexHandler extends RequestHandler
 
 	private class Cache
 	{
-		private long loadedDate;
-		private String xhtml;
+		private byte[] xhtmlBytes;
+
+		/**
+		 * Complete pages, by content type and path to root.
+		 */
+		private ConcurrentMap<String, RenderedPage> pages =
+			new ConcurrentHashMap<String, RenderedPage>();
 
 		/**
 		 * Loads cache.
 		 * @param reload True if cache should be reloaded
-		 * @param r Request is used to send data if the process will take a while
+		 * @param progress Receives progress if the cache file has to be rebuilt
 		 * @throws InternalException Any error
 		 * @throws IOException I/O error
 		 */
-		private Cache(boolean reload, Request r) throws InternalException, IOException
+		private Cache(boolean reload, Progress progress)
+			throws InternalException, IOException
 		{
 			File file = getCacheFile();
 			long cacheDate = file.lastModified();
@@ -187,7 +213,7 @@ public class IndexHandler extends RequestHandler
 				boolean justMade = false;
 				if(cacheDate == 0 || reload)
 				{
-					makeCacheFile(r);
+					makeCacheFile(progress);
 					justMade = true;
 				}
 
@@ -218,25 +244,21 @@ public class IndexHandler extends RequestHandler
 					// If necessary, re-make file
 					if(lastModified > cacheDate)
 					{
-						makeCacheFile(r);
+						makeCacheFile(progress);
 						cache = xml.parseFile(file);
 					}
 				}
 
-				String xsl = getMainServlet().getTemplates().get(
-					TemplateManager.Name.INDEX_XSL).getString();
-				Document xslDocument = xml.parseString(
-					TemplateManager.Name.INDEX_XSL.getFilename(),	xsl);
-				xhtml = xml.transform(xslDocument, cache).replace("%%SITENAME%%",
+				xhtmlBytes = xml.transform(getMainServlet().getTemplates(),
+					TemplateManager.Name.INDEX_XSL, cache).replace("%%SITENAME%%",
 					Util.esc(getMainServlet().getSiteName())).replace("%%INDEXINTRO%%",
 					getMainServlet().getIndexIntroXhtml()).replace("%%INDEXFINAL%%",
-					getMainServlet().getIndexFinalXhtml());
-				loadedDate = System.currentTimeMillis();
+					getMainServlet().getIndexFinalXhtml()).getBytes(UTF8);
 			}
 			catch(InternalException e)
 			{
-				xhtml = e.getErrorXhtml(r, getMainServlet());
-				loadedDate = System.currentTimeMillis();
+				// The index is at the root
+				xhtmlBytes = e.getErrorXhtml("", getMainServlet());
 			}
 		}
 
@@ -245,10 +267,10 @@ public class IndexHandler extends RequestHandler
 			return new File(cacheRoot, "index.cache");
 		}
 
-		private void makeCacheFile(Request r) throws InternalException, IOException
+		private void makeCacheFile(Progress progress)
+			throws InternalException, IOException
 		{
-			// Set up request
-			PrintWriter writer = startProgress(r);
+			progress.start();
 
 			try
 			{
@@ -278,11 +300,11 @@ public class IndexHandler extends RequestHandler
 					String storyName = folderFile.getName();
 					try
 					{
-						updateProgress(writer, storyName);
+						progress.update(storyName);
 
-						// Load story
+						// Load story (without pushing popular ones out of memory)
 						Story story = getMainServlet().getStories().getStory(
-							storyName, false);
+							storyName, false, false);
 
 						// Get picture details
 						Pic indexPic = story.getIndexPic();
@@ -291,7 +313,7 @@ public class IndexHandler extends RequestHandler
 
 						// Create folder object
 						result = new Folder(storyName, story.getLastModified(),
-							story.getDate(), story.getTitle(), story.getDescription(),
+							story.getDate(), story.getTitle(), story.getDescriptionXml(),
 							picUrl,	indexPic.getWidth(), indexPic.getHeight());
 					}
 					catch(Exception e)
@@ -309,16 +331,15 @@ public class IndexHandler extends RequestHandler
 					folder.add(root);
 				}
 
-				// Save cache file
-				FileOutputStream output = new FileOutputStream(getCacheFile());
-				output.write(xml.saveString(cache).getBytes(Charset.forName("UTF-8")));
-				output.close();
+				// Save cache file (via a temp file in case two threads do this)
+				Story.saveCacheFile(getCacheFile(),
+					xml.saveString(cache).getBytes(UTF8));
 
-				finishProgress(writer, null);
+				progress.finish(null);
 			}
 			catch(Throwable t)
 			{
-				finishProgress(writer, t);
+				progress.finish(t);
 			}
 		}
 
@@ -336,19 +357,22 @@ public class IndexHandler extends RequestHandler
 		}
 
 		/**
-		 * @return Date at which cache was last checked
-		 */
-		public long getLoadedDate()
-		{
-			return loadedDate;
-		}
-
-		/**
-		 * @return XHTML content of page
+		 * Sends the index page, rendering it only if it's changed.
+		 * @param r Request
+		 * @throws InternalException Any error
+		 * @throws IOException Any I/O error
 		 */
-		public String getXhtml()
+		public void send(Request r) throws InternalException, IOException
 		{
-			return xhtml;
+			String key = r.getXhtmlMimeType() + " " + r.getPathToRoot();
+			RenderedPage page = pages.get(key);
+			if(page == null
+				|| !page.isCurrent(getMainServlet().getPageGeneration()))
+			{
+				page = getMainServlet().renderPage(r, "index", null, xhtmlBytes);
+				pages.put(key, page);
+			}
+			r.outputPage(page);
 		}
 	}
 
@@ -356,15 +380,13 @@ public class IndexHandler extends RequestHandler
 	 * @param mainServlet Main servlet
 	 * @param cacheRoot Root folder for cache
 	 * @param storyRoot Root folder for stories
-	 * @throws InternalException Any error constructing standard objects
 	 */
 	public IndexHandler(MainServlet mainServlet, File cacheRoot, File storyRoot)
-		throws InternalException
 	{
 		super(mainServlet);
 		this.cacheRoot = cacheRoot;
 		this.storyRoot = storyRoot;
-		xml = new XmlProcessors();
+		xml = mainServlet.getXml();
 	}
 
 	/**
@@ -374,13 +396,12 @@ public class IndexHandler extends RequestHandler
 	 */
 	public void get(Request r) throws UserException, IOException
 	{
-		long now = System.currentTimeMillis();
 		synchronized(this)
 		{
-			if(cache == null || cache.getLoadedDate() + CACHE_EXPIRY < now
-				|| r.isReload())
+			if(cache == null || changed || r.isReload())
 			{
-				cache = new Cache(r.isReload(), r);
+				changed = false;
+				cache = new Cache(r.isReload(), new RequestProgress(r));
 				if(r.sentData())
 				{
 					return;
@@ -388,58 +409,142 @@ public class IndexHandler extends RequestHandler
 			}
 		}
 
-		getMainServlet().sendPage(r, "index", null, cache.getXhtml());
+		cache.send(r);
 	}
 
-	private PrintWriter startProgress(Request r)
+	/**
+	 * Rebuilds the index cache file from every story. Requests for the index
+	 * continue to get the old version until it has finished.
+	 * @param progress Receives progress
+	 * @throws InternalException Any error
+	 * @throws IOException Any I/O error
+	 */
+	public void reload(Progress progress) throws InternalException, IOException
+	{
+		Cache newCache = new Cache(true, progress);
+		synchronized(this)
+		{
+			changed = false;
+			cache = newCache;
+		}
+	}
+
+	/**
+	 * Called by the change monitor when a story or template has changed, so
+	 * that the index will be checked next time.
+	 */
+	public void changed()
+	{
+		changed = true;
+	}
+
+	/**
+	 * Receives progress while the index cache file is rebuilt.
+	 */
+	interface Progress
+	{
+		/**
+		 * Called before the first story.
+		 * @throws IOException Any I/O error
+		 * @throws InternalException Any other error
+		 */
+		void start() throws IOException, InternalException;
+
+		/**
+		 * Called before each story.
+		 * @param storyName Story name
+		 * @throws IOException Any I/O error
+		 * @throws InternalException Any other error
+		 */
+		void update(String storyName) throws IOException, InternalException;
+
+		/**
+		 * Called at the end.
+		 * @param t Error, or null if successful
+		 * @throws IOException Any I/O error
+		 * @throws InternalException Any other error
+		 */
+		void finish(Throwable t) throws IOException, InternalException;
+	}
+
+	/**
+	 * Shows progress to the person who requested the index.
+	 */
+	private class RequestProgress implements Progress
+	{
+		private Request r;
+		private OutputStream out;
+
+		RequestProgress(Request r)
+		{
+			this.r = r;
+		}
+
+		@Override
+		public void start() throws IOException, InternalException
+		{
+			out = startProgress(r);
+		}
+
+		@Override
+		public void update(String storyName) throws IOException,
+			InternalException
+		{
+			updateProgress(out, storyName);
+		}
+
+		@Override
+		public void finish(Throwable t) throws IOException, InternalException
+		{
+			finishProgress(out, t);
+		}
+	}
+
+	private OutputStream startProgress(Request r)
 		throws IOException, InternalException
 	{
-		PrintWriter writer = r.outputXhtmlHeaders(HttpServletResponse.SC_OK);
+		OutputStream out = r.outputXhtmlHeaders(HttpServletResponse.SC_OK);
 		Template template = getMainServlet().getTemplates().get(
 			TemplateManager.Name.PROGRESS_START);
-		writer.print(
-			template.getString("",
+		out.write(
+			template.getBytes("",
 				new String[] {	"SITENAME" },
 				new String[] { Util.esc(getMainServlet().getSiteName()) }));
-		return writer;
+		return out;
 	}
 
-	private void updateProgress(PrintWriter writer, String storyName)
+	private void updateProgress(OutputStream out, String storyName)
 		throws IOException, InternalException
 	{
 		Template template = getMainServlet().getTemplates().get(
 			TemplateManager.Name.PROGRESS_UPDATE);
-		writer.println(
-			template.getString("",
+		out.write(
+			template.getBytes("",
 				new String[] {	"STORYNAME" },
 				new String[] { Util.esc(storyName) }));
-		for(int i=0; i<20; i++)
-		{
-			writer.print("          ");
-		}
-		writer.println();
-		writer.flush();
+		out.write(PROGRESS_PADDING);
+		out.flush();
 	}
 
-	private void finishProgress(PrintWriter writer, Throwable t)
+	private void finishProgress(OutputStream out, Throwable t)
 		throws IOException, InternalException
 	{
 		if(t == null)
 		{
 			Template template = getMainServlet().getTemplates().get(
 				TemplateManager.Name.PROGRESS_FINISH);
-			writer.print(template.getString());
+			out.write(template.getBytes("", new String[0], new String[0]));
 		}
 		else
 		{
 			Template template = getMainServlet().getTemplates().get(
 				TemplateManager.Name.PROGRESS_ERROR);
-			writer.print(
-				template.getString("",
+			out.write(
+				template.getBytes("",
 					new String[] { "ERROR", "TRACE" },
 					new String[] { Util.esc(t.getMessage()),
 					Util.esc(UserException.getTrace(t)) }));
 		}
-		writer.close();
+		out.close();
 	}
 }
@@ -0,0 +1,515 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+
+/**
+ * Reads dimensions and EXIF data from a JPEG file by looking only at its
+ * marker segments. Image data is never decoded; reading stops at the start
+ * of the first scan.
+ */
+class JpegProbe
+{
+	private final static int MARKER_SOI = 0xd8, MARKER_EOI = 0xd9,
+		MARKER_SOS = 0xda, MARKER_APP1 = 0xe1;
+
+	private final static int TAG_EXIF_IFD = 0x8769, TAG_GPS_IFD = 0x8825,
+		TAG_DATE_TIME_ORIGINAL = 0x9003, TAG_APERTURE_VALUE = 0x9202,
+		TAG_EXPOSURE_TIME = 0x829a, TAG_FOCAL_LENGTH = 0x920a, TAG_ISO = 0x8827,
+		TAG_GPS_LATITUDE_REF = 1, TAG_GPS_LATITUDE = 2,
+		TAG_GPS_LONGITUDE_REF = 3, TAG_GPS_LONGITUDE = 4;
+
+	private final static int TYPE_ASCII = 2, TYPE_SHORT = 3, TYPE_LONG = 4,
+		TYPE_RATIONAL = 5;
+
+	private int width = -1, height = -1;
+
+	private String dateTimeOriginal;
+	private Double aperture, exposureTime, focalLength;
+	private Integer iso;
+	private Double latitude, longitude;
+
+	/**
+	 * Reads JPEG headers from the stream, then closes it.
+	 * @param in Input stream positioned at start of JPEG file
+	 * @throws IOException Any error reading stream, or if the data is not a
+	 *   JPEG file
+	 */
+	JpegProbe(InputStream in) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		try
+		{
+			if(data.readUnsignedByte() != 0xff
+				|| data.readUnsignedByte() != MARKER_SOI)
+			{
+				throw new IOException("Not a JPEG file");
+			}
+
+			boolean exifDone = false;
+			while(true)
+			{
+				// Find next marker, skipping any fill bytes
+				if(data.readUnsignedByte() != 0xff)
+				{
+					throw new IOException("Invalid JPEG marker");
+				}
+				int marker = data.readUnsignedByte();
+				while(marker == 0xff)
+				{
+					marker = data.readUnsignedByte();
+				}
+
+				// Markers without a length
+				if(marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7))
+				{
+					continue;
+				}
+				if(marker == MARKER_SOS || marker == MARKER_EOI)
+				{
+					break;
+				}
+
+				int length = data.readUnsignedShort() - 2;
+				if(length < 0)
+				{
+					throw new IOException("Invalid JPEG segment length");
+				}
+
+				if(isStartOfFrame(marker))
+				{
+					byte[] segment = new byte[length];
+					data.readFully(segment);
+					if(length < 5)
+					{
+						throw new IOException("Invalid JPEG frame header");
+					}
+					height = ((segment[1] & 0xff) << 8) | (segment[2] & 0xff);
+					width = ((segment[3] & 0xff) << 8) | (segment[4] & 0xff);
+				}
+				else if(marker == MARKER_APP1 && !exifDone)
+				{
+					byte[] segment = new byte[length];
+					data.readFully(segment);
+					exifDone = readExif(segment);
+				}
+				else
+				{
+					skipFully(data, length);
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			throw new IOException("Unexpected end of JPEG file");
+		}
+		finally
+		{
+			data.close();
+		}
+
+		if(width <= 0 || height <= 0)
+		{
+			throw new IOException("JPEG file has no image dimensions");
+		}
+	}
+
+	private static boolean isStartOfFrame(int marker)
+	{
+		// SOF0-SOF15 except DHT (c4), JPG (c8) and DAC (cc)
+		return marker >= 0xc0 && marker <= 0xcf
+			&& marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+	}
+
+	private static void skipFully(DataInputStream data, int length)
+		throws IOException
+	{
+		while(length > 0)
+		{
+			int skipped = data.skipBytes(length);
+			if(skipped <= 0)
+			{
+				// Force EOF detection
+				data.readUnsignedByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Reads the EXIF fields we use from an APP1 segment.
+	 * @param segment Segment data (not including marker and length)
+	 * @return True if this was an EXIF segment
+	 */
+	private boolean readExif(byte[] segment)
+	{
+		if(segment.length < 14 || segment[0] != 'E' || segment[1] != 'x'
+			|| segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0
+			|| segment[5] != 0)
+		{
+			return false;
+		}
+		Tiff tiff;
+		if(segment[6] == 'I' && segment[7] == 'I')
+		{
+			tiff = new Tiff(segment, 6, true);
+		}
+		else if(segment[6] == 'M' && segment[7] == 'M')
+		{
+			tiff = new Tiff(segment, 6, false);
+		}
+		else
+		{
+			return false;
+		}
+
+		int ifd0 = tiff.getLong(4);
+		int exifIfd = tiff.getIfdPointer(ifd0, TAG_EXIF_IFD);
+		int gpsIfd = tiff.getIfdPointer(ifd0, TAG_GPS_IFD);
+
+		// Fields normally live in the EXIF directory, but a few cameras put
+		// them in the main one
+		int[] ifds = exifIfd == -1 ? new int[] { ifd0 } : new int[] { exifIfd, ifd0 };
+		for(int ifd : ifds)
+		{
+			if(dateTimeOriginal == null)
+			{
+				dateTimeOriginal = tiff.getAscii(ifd, TAG_DATE_TIME_ORIGINAL);
+			}
+			if(aperture == null)
+			{
+				aperture = tiff.getRational(ifd, TAG_APERTURE_VALUE, 0);
+			}
+			if(exposureTime == null)
+			{
+				exposureTime = tiff.getRational(ifd, TAG_EXPOSURE_TIME, 0);
+			}
+			if(focalLength == null)
+			{
+				focalLength = tiff.getRational(ifd, TAG_FOCAL_LENGTH, 0);
+			}
+			if(iso == null)
+			{
+				iso = tiff.getInteger(ifd, TAG_ISO);
+			}
+		}
+
+		if(gpsIfd != -1)
+		{
+			Double lat = tiff.getDegrees(gpsIfd, TAG_GPS_LATITUDE),
+				lon = tiff.getDegrees(gpsIfd, TAG_GPS_LONGITUDE);
+			String latRef = tiff.getAscii(gpsIfd, TAG_GPS_LATITUDE_REF),
+				lonRef = tiff.getAscii(gpsIfd, TAG_GPS_LONGITUDE_REF);
+			if(lat != null && lon != null && latRef != null && lonRef != null
+				&& (latRef.startsWith("N") || latRef.startsWith("S"))
+				&& (lonRef.startsWith("E") || lonRef.startsWith("W")))
+			{
+				latitude = latRef.startsWith("S") ? -lat : lat;
+				longitude = lonRef.startsWith("W") ? -lon : lon;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bounds-checked access to TIFF data inside an EXIF segment. Any value
+	 * that is missing, of an unexpected type, or points outside the segment is
+	 * treated as absent.
+	 */
+	private static class Tiff
+	{
+		private byte[] data;
+		private int base;
+		private boolean littleEndian;
+
+		Tiff(byte[] data, int base, boolean littleEndian)
+		{
+			this.data = data;
+			this.base = base;
+			this.littleEndian = littleEndian;
+		}
+
+		private boolean inRange(int offset, int length)
+		{
+			// Use long so that huge values from corrupt entries can't overflow
+			return offset >= 0 && length >= 0
+				&& (long)base + offset + length <= data.length;
+		}
+
+		int getShort(int offset)
+		{
+			if(!inRange(offset, 2))
+			{
+				return -1;
+			}
+			int a = data[base + offset] & 0xff, b = data[base + offset + 1] & 0xff;
+			return littleEndian ? (b << 8) | a : (a << 8) | b;
+		}
+
+		int getLong(int offset)
+		{
+			if(!inRange(offset, 4))
+			{
+				return -1;
+			}
+			int result = 0;
+			for(int i=0; i<4; i++)
+			{
+				int b = data[base + offset + (littleEndian ? 3 - i : i)] & 0xff;
+				result = (result << 8) | b;
+			}
+			return result;
+		}
+
+		private long getUnsignedLong(int offset)
+		{
+			return getLong(offset) & 0xffffffffL;
+		}
+
+		/**
+		 * @param ifd Offset of directory
+		 * @param tag Tag to find
+		 * @return Offset of the 12-byte entry for this tag, or -1 if none
+		 */
+		private int findEntry(int ifd, int tag)
+		{
+			int count = getShort(ifd);
+			if(count <= 0)
+			{
+				return -1;
+			}
+			for(int i=0; i<count; i++)
+			{
+				int entry = ifd + 2 + i * 12;
+				if(!inRange(entry, 12))
+				{
+					return -1;
+				}
+				if(getShort(entry) == tag)
+				{
+					return entry;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param entry Entry offset
+		 * @param size Total size of value in bytes
+		 * @return Offset of value data (inline or pointed to)
+		 */
+		private int getValueOffset(int entry, int size)
+		{
+			return size <= 4 ? entry + 8 : getLong(entry + 8);
+		}
+
+		int getIfdPointer(int ifd, int tag)
+		{
+			int entry = findEntry(ifd, tag);
+			if(entry == -1)
+			{
+				return -1;
+			}
+			int type = getShort(entry + 2);
+			if(type != TYPE_LONG && type != TYPE_SHORT)
+			{
+				return -1;
+			}
+			int offset = type == TYPE_LONG ? getLong(entry + 8) : getShort(entry + 8);
+			return inRange(offset, 2) ? offset : -1;
+		}
+
+		String getAscii(int ifd, int tag)
+		{
+			int entry = findEntry(ifd, tag);
+			if(entry == -1 || getShort(entry + 2) != TYPE_ASCII)
+			{
+				return null;
+			}
+			int count = getLong(entry + 4);
+			int offset = getValueOffset(entry, count);
+			if(!inRange(offset, count))
+			{
+				return null;
+			}
+			// Strip trailing nulls
+			int length = count;
+			while(length > 0 && data[base + offset + length - 1] == 0)
+			{
+				length--;
+			}
+			try
+			{
+				return new String(data, base + offset, length, "ISO-8859-1");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new Error("No ISO-8859-1 support?!", e);
+			}
+		}
+
+		Integer getInteger(int ifd, int tag)
+		{
+			int entry = findEntry(ifd, tag);
+			if(entry == -1 || getLong(entry + 4) < 1)
+			{
+				return null;
+			}
+			switch(getShort(entry + 2))
+			{
+			case TYPE_SHORT:
+				return getShort(getValueOffset(entry, 2));
+			case TYPE_LONG:
+				return getLong(getValueOffset(entry, 4));
+			default:
+				return null;
+			}
+		}
+
+		Double getRational(int ifd, int tag, int index)
+		{
+			int entry = findEntry(ifd, tag);
+			if(entry == -1 || getShort(entry + 2) != TYPE_RATIONAL)
+			{
+				return null;
+			}
+			int count = getLong(entry + 4);
+			if(count <= index || count > data.length / 8)
+			{
+				return null;
+			}
+			int valueOffset = getValueOffset(entry, count * 8);
+			if(valueOffset < 0)
+			{
+				return null;
+			}
+			int offset = valueOffset + index * 8;
+			if(!inRange(offset, 8))
+			{
+				return null;
+			}
+			long numerator = getUnsignedLong(offset),
+				denominator = getUnsignedLong(offset + 4);
+			if(denominator == 0)
+			{
+				return null;
+			}
+			return (double)numerator / (double)denominator;
+		}
+
+		/**
+		 * @param ifd GPS directory
+		 * @param tag Latitude or longitude tag
+		 * @return Value in degrees (always positive), or null if invalid
+		 */
+		Double getDegrees(int ifd, int tag)
+		{
+			Double degrees = getRational(ifd, tag, 0),
+				minutes = getRational(ifd, tag, 1),
+				seconds = getRational(ifd, tag, 2);
+			if(degrees == null || minutes == null || seconds == null)
+			{
+				return null;
+			}
+			return degrees + minutes / 60.0 + seconds / 3600.0;
+		}
+	}
+
+	/**
+	 * @return Image width in pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Image height in pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return EXIF original date/time string ("yyyy:MM:dd HH:mm:ss"), or null
+	 */
+	public String getDateTimeOriginal()
+	{
+		return dateTimeOriginal;
+	}
+
+	/**
+	 * @return EXIF aperture value (APEX units), or null
+	 */
+	public Double getAperture()
+	{
+		return aperture;
+	}
+
+	/**
+	 * @return EXIF exposure time in seconds, or null
+	 */
+	public Double getExposureTime()
+	{
+		return exposureTime;
+	}
+
+	/**
+	 * @return EXIF focal length in millimetres, or null
+	 */
+	public Double getFocalLength()
+	{
+		return focalLength;
+	}
+
+	/**
+	 * @return EXIF ISO speed, or null
+	 */
+	public Integer getIso()
+	{
+		return iso;
+	}
+
+	/**
+	 * @return True if GPS latitude and longitude are available
+	 */
+	public boolean hasLocation()
+	{
+		return latitude != null;
+	}
+
+	/**
+	 * @return Latitude in degrees north (negative for south)
+	 */
+	public double getLatitude()
+	{
+		return latitude;
+	}
+
+	/**
+	 * @return Longitude in degrees east (negative for west)
+	 */
+	public double getLongitude()
+	{
+		return longitude;
+	}
+}
@@ -19,8 +19,9 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.picstory;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.*;
 import java.util.regex.*;
 
 import javax.servlet.ServletException;
@@ -57,39 +58,90 @@ public class MainServlet extends HttpServlet
 	private final static Pattern REGEX_STORY_BASIC_XML = Pattern.compile(
 		"/(" + REGEX_PART_LCNAME + ")/basicxml");
 
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
 	private ResourceHandler resource;
 	private StoryHandler story;
 	private IndexHandler index;
+	private AdminHandler admin;
 
 	private TemplateManager templates;
 	private StoryCache stories;
+	private XmlProcessors xml;
+	private ChangeMonitor monitor;
 	private String siteName, indexIntroXhtml, indexFinalXhtml, storyFinalXhtml;
+	private boolean publicReload;
 
 	@Override
 	public void init() throws ServletException
 	{
 		System.setProperty("java.awt.headless", "true");
 		super.init();
-		resource = new ResourceHandler(this, getFolderParameter("resource-folder"));
+		resource = new ResourceHandler(this, getFolderParameter("resource-folder"),
+			Boolean.parseBoolean(getParameter("minify-resources", "true")));
 		File cacheRoot = getFolderParameter("cache-folder");
 		File storyRoot = getFolderParameter("story-folder");
 		try
 		{
-			stories = new StoryCache(this, cacheRoot, storyRoot);
-			index = new IndexHandler(this, cacheRoot, storyRoot);
+			xml = new XmlProcessors();
 		}
 		catch(InternalException e)
 		{
 			throw new ServletException(e);
 		}
+		stories = new StoryCache(this, cacheRoot, storyRoot,
+			Long.parseLong(getParameter("story-cache-kb", "16384")) * 1024L,
+			Boolean.parseBoolean(getParameter("serve-stale", "false")));
+		index = new IndexHandler(this, cacheRoot, storyRoot);
 		story = new StoryHandler(this, cacheRoot, storyRoot,
-			Integer.parseInt(getParameter("max-resize-threads")));
-		templates = new TemplateManager(
-			getFolderParameter("template-folder"), resource);
+			Integer.parseInt(getParameter("max-resize-threads")),
+			Long.parseLong(getParameter("pic-cache-kb", "0")) * 1024L);
+		File templateFolder = getFolderParameter("template-folder");
+		templates = new TemplateManager(templateFolder, resource);
 		siteName = getParameter("site-name");
 		indexIntroXhtml = getParameter("index-intro");
 		indexFinalXhtml = getParameter("index-final");
 		storyFinalXhtml = getParameter("story-final");
+		admin = new AdminHandler(this, resource, story, index, storyRoot,
+			getParameter("admin-token", null), getParameter("admin-addresses", null));
+		publicReload = Boolean.parseBoolean(getParameter("public-reload", "false"));
+
+		// Watch for changes to files
+		monitor = new ChangeMonitor(storyRoot, templateFolder,
+			getFolderParameter("resource-folder"), new ChangeMonitor.Listener()
+			{
+				@Override
+				public void storyChanged(String storyName)
+				{
+					stories.changed(storyName);
+					story.changed(storyName);
+					index.changed();
+				}
+
+				@Override
+				public void templateChanged(String filename)
+				{
+					templates.changed(filename);
+					index.changed();
+				}
+
+				@Override
+				public void resourceChanged(String filename)
+				{
+					resource.changed(filename);
+				}
+			}, getParameter("change-detection", "watch").equals("poll"),
+			Long.parseLong(getParameter("change-poll-seconds", "10")) * 1000L);
+	}
+
+	@Override
+	public void destroy()
+	{
+		monitor.close();
+		admin.close();
+		stories.close();
+		xml.close();
+		super.destroy();
 	}
 
 	/**
@@ -108,6 +160,18 @@ public class MainServlet extends HttpServlet
 		return param;
 	}
 
+	/**
+	 * Gets optional parameter.
+	 * @param name Parameter name
+	 * @param defaultValue Value to use if not specified
+	 * @return Parameter value
+	 */
+	private String getParameter(String name, String defaultValue)
+	{
+		String param = getServletConfig().getInitParameter(name);
+		return param == null ? defaultValue : param;
+	}
+
 	private File getFolderParameter(String name) throws ServletException
 	{
 		String param = getParameter(name);
@@ -139,6 +203,14 @@ public class MainServlet extends HttpServlet
 		return templates;
 	}
 
+	/**
+	 * @return XML processors (shared by all threads)
+	 */
+	public XmlProcessors getXml()
+	{
+		return xml;
+	}
+
 	/**
 	 * @return Story cache
 	 */
@@ -185,13 +257,57 @@ public class MainServlet extends HttpServlet
 	 * @param statusCode Status code (HttpServletResponse.SC_xx)
 	 * @param className Class name of page body tag
 	 * @param title Title (null = only site title); should not be escaped yet
-	 * @param content Main content of page (to be placed inside page template)
+	 * @param content Main content of page (UTF-8; to be placed inside page
+	 *   template)
 	 * @throws IOException Any error
 	 * @throws InternalException Unexpected errors
 	 */
 	public void sendPage(Request r, int statusCode, String className,
-		String title, String content)
+		String title, byte[] content)
 		throws IOException, InternalException
+	{
+		if(statusCode == HttpServletResponse.SC_OK)
+		{
+			r.outputPage(renderPage(r, className, title, content));
+		}
+		else
+		{
+			r.outputXhtml(statusCode,
+				getPageParts(r, className, title, content));
+		}
+	}
+
+	/**
+	 * Renders a page using the main page template, ready to send (and keep, so
+	 * that it can be sent again while {@link #getPageGeneration()} doesn't
+	 * change).
+	 * @param r Request
+	 * @param className Class name of page body tag
+	 * @param title Title (null = only site title); should not be escaped yet
+	 * @param content Main content of page (UTF-8)
+	 * @return Rendered page
+	 * @throws IOException Any error
+	 * @throws InternalException Unexpected errors
+	 */
+	public RenderedPage renderPage(Request r, String className, String title,
+		byte[] content) throws IOException, InternalException
+	{
+		long generation = getPageGeneration();
+		return new RenderedPage(r.getXhtmlMimeType(),
+			Util.join(getPageParts(r, className, title, content)), generation);
+	}
+
+	/**
+	 * @param r Request
+	 * @param className Class name of page body tag
+	 * @param title Title (null = only site title); should not be escaped yet
+	 * @param content Main content of page (UTF-8)
+	 * @return Page as UTF-8 parts
+	 * @throws IOException Any error
+	 * @throws InternalException Unexpected errors
+	 */
+	private byte[][] getPageParts(Request r, String className, String title,
+		byte[] content) throws IOException, InternalException
 	{
 		if(title == null)
 		{
@@ -201,11 +317,22 @@ public class MainServlet extends HttpServlet
 		{
 			title = siteName + " - " + Util.esc(title);
 		}
+		Map<String, byte[]> fields = new HashMap<String, byte[]>();
+		fields.put("CLASS", className.getBytes(UTF8));
+		fields.put("TITLE", title.getBytes(UTF8));
+		fields.put("MAIN", content);
 		Template pageTemplate = templates.get(TemplateManager.Name.PAGE);
-		r.outputXhtml(statusCode, pageTemplate.getString(
-			r.getPathToRoot(),
-			new String[] { "CLASS", "TITLE", "MAIN" },
-			new String[] { className, title, content }));
+		return pageTemplate.getParts(r.getPathToRoot(), fields);
+	}
+
+	/**
+	 * Rendered pages depend on the templates and resources (for their URLs and
+	 * inline content). This number changes whenever either of those do.
+	 * @return Current page generation
+	 */
+	public long getPageGeneration()
+	{
+		return ((long)templates.getGeneration() << 32) | resource.getGeneration();
 	}
 
 	/**
@@ -213,11 +340,12 @@ public class MainServlet extends HttpServlet
 	 * @param r Request
 	 * @param className Class name of page body tag
 	 * @param title Title (null = only site title)
-	 * @param content Main content of page (to be placed inside page template)
+	 * @param content Main content of page (UTF-8; to be placed inside page
+	 *   template)
 	 * @throws IOException Any error
 	 * @throws InternalException Unexpected errors
 	 */
-	public void sendPage(Request r, String className, String title, String content)
+	public void sendPage(Request r, String className, String title, byte[] content)
 		throws IOException, InternalException
 	{
 		sendPage(r, HttpServletResponse.SC_OK, className, title, content);
@@ -227,7 +355,34 @@ public class MainServlet extends HttpServlet
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 		throws ServletException, IOException
 	{
-		Request r = new Request(request, response);
+		handle(new Request(request, response, false, publicReload));
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest request,
+		HttpServletResponse response) throws ServletException, IOException
+	{
+		// Same as GET, but the output methods only send headers
+		handle(new Request(request, response, true, publicReload));
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request,
+		HttpServletResponse response) throws ServletException, IOException
+	{
+		// Only used by the admin pages (handle checks this)
+		handle(new Request(request, response, false, false));
+	}
+
+	/**
+	 * Handles a GET, HEAD or POST request.
+	 * @param r Request
+	 * @throws ServletException Error displaying error
+	 * @throws IOException Any I/O error
+	 */
+	private void handle(Request r) throws ServletException, IOException
+	{
+		HttpServletRequest request = r.getRequest();
 
 		try
 		{
@@ -250,9 +405,28 @@ public class MainServlet extends HttpServlet
 					return;
 				}
 
+				if(AdminHandler.isAdminPath(path))
+				{
+					admin.handle(r, path);
+					return;
+				}
+				if(request.getMethod().equals("POST"))
+				{
+					r.getResponse().setHeader("Allow", "GET, HEAD");
+					throw new UserException(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+						"Method not allowed");
+				}
+
 				if(path.equals("/"))
 				{
 					index.get(r);
+					return;
+				}
+
+				// Most requests are for pictures that have been sent before
+				if(story.getRoutedPic(r, path))
+				{
+					return;
 				}
 
 				Matcher m = REGEX_RESOURCE.matcher(path);
@@ -0,0 +1,148 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+/**
+ * Makes CSS and JavaScript resources smaller. Both methods are deliberately
+ * cautious: they only remove comments and whitespace in places where that
+ * can't change the meaning.
+ */
+abstract class Minifier
+{
+	/**
+	 * Characters in CSS where spaces on either side can be removed.
+	 */
+	private final static String CSS_PUNCTUATION = "{};,>";
+
+	/**
+	 * Minifies CSS. Removes comments, collapses whitespace (except inside
+	 * strings), removes it around punctuation and after colons, and removes
+	 * the final semicolon in each block.
+	 * @param css CSS
+	 * @return Minified CSS
+	 */
+	static String css(String css)
+	{
+		StringBuilder out = new StringBuilder(css.length());
+		boolean space = false;
+		int pos = 0;
+		while(pos < css.length())
+		{
+			char c = css.charAt(pos);
+			if(c == '/' && css.startsWith("/*", pos))
+			{
+				int end = css.indexOf("*/", pos + 2);
+				pos = end == -1 ? css.length() : end + 2;
+				space = true;
+				continue;
+			}
+			if(Character.isWhitespace(c))
+			{
+				pos++;
+				space = true;
+				continue;
+			}
+
+			if(out.length() > 0)
+			{
+				char last = out.charAt(out.length() - 1);
+				if(space && CSS_PUNCTUATION.indexOf(last) == -1 && last != ':'
+					&& CSS_PUNCTUATION.indexOf(c) == -1)
+				{
+					out.append(' ');
+				}
+				else if(c == '}' && last == ';')
+				{
+					out.setLength(out.length() - 1);
+				}
+			}
+			space = false;
+
+			if(c == '"' || c == '\'')
+			{
+				// Copy strings exactly
+				int end = pos + 1;
+				while(end < css.length() && css.charAt(end) != c
+					&& css.charAt(end) != '\n')
+				{
+					if(css.charAt(end) == '\\')
+					{
+						end++;
+					}
+					end++;
+				}
+				end = Math.min(end + 1, css.length());
+				out.append(css, pos, end);
+				pos = end;
+			}
+			else
+			{
+				out.append(c);
+				pos++;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Minifies JavaScript. Removes indentation, blank lines, and lines that
+	 * are only comments. Line breaks are kept (so automatic semicolon
+	 * insertion works as before), as are comments at the end of a line of
+	 * code. Don't use this on scripts with strings that continue across
+	 * several lines.
+	 * @param js JavaScript
+	 * @return Minified JavaScript
+	 */
+	static String js(String js)
+	{
+		StringBuilder out = new StringBuilder(js.length());
+		boolean inComment = false;
+		for(String line : js.split("\n"))
+		{
+			String trimmed = line.trim();
+			if(inComment)
+			{
+				int end = trimmed.indexOf("*/");
+				if(end == -1)
+				{
+					continue;
+				}
+				inComment = false;
+				trimmed = trimmed.substring(end + 2).trim();
+			}
+			if(trimmed.startsWith("/*"))
+			{
+				int end = trimmed.indexOf("*/", 2);
+				if(end == -1)
+				{
+					inComment = true;
+					continue;
+				}
+				trimmed = trimmed.substring(end + 2).trim();
+			}
+			if(trimmed.length() == 0 || trimmed.startsWith("//"))
+			{
+				continue;
+			}
+			out.append(trimmed);
+			out.append('\n');
+		}
+		return out.toString();
+	}
+}
@@ -55,21 +55,6 @@ class Pic
 		}
 	}
 
-	void add(Element parent)
-	{
-		Element pic = parent.getOwnerDocument().createElement("pic");
-		parent.appendChild(pic);
-		pic.setAttribute("filename", filename);
-		pic.setAttribute("hash", hash);
-		pic.setAttribute("size", size + "");
-		pic.setAttribute("width", width + "");
-		pic.setAttribute("height", height + "");
-		if(indexPic)
-		{
-			pic.setAttribute("indexpic", "y");
-		}
-	}
-
 	/**
 	 * Marks this picture as the index pic for its story.
 	 */
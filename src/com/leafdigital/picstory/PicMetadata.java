@@ -0,0 +1,276 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Data obtained from a picture file when a story is built: hash, size,
+ * dimensions and the EXIF attributes that are added to its pic element.
+ */
+class PicMetadata
+{
+	private String hash;
+	private int size, width, height;
+	private long lastModified;
+	private Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+	/**
+	 * Reads metadata from a picture file. This is safe to call from any thread.
+	 * @param picFile Picture file
+	 * @throws InternalException If the file is not a valid JPEG
+	 * @throws IOException Any I/O error
+	 */
+	PicMetadata(File picFile) throws InternalException, IOException
+	{
+		// Get modified date first so that if the file changes while we read it,
+		// the result won't match next time
+		lastModified = picFile.lastModified();
+
+		JpegProbe probe;
+		FileInputStream in = new FileInputStream(picFile);
+		try
+		{
+			// Hash file contents, reading straight from disk
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			if(length > Integer.MAX_VALUE)
+			{
+				throw new InternalException("Picture '" + picFile.getName()
+					+ "': file too large");
+			}
+			size = (int)length;
+			try
+			{
+				hash = Util.hash(channel).substring(0, 8);
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				throw new InternalException(e);
+			}
+
+			// Read image headers to get basic data
+			channel.position(0);
+			try
+			{
+				probe = new JpegProbe(Channels.newInputStream(channel));
+			}
+			catch(IOException e)
+			{
+				throw new InternalException("Picture '" + picFile.getName()
+					+ "': error reading", e);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		width = probe.getWidth();
+		height = probe.getHeight();
+
+		// Set metadata attributes
+		String dateTimeString = probe.getDateTimeOriginal();
+		if(dateTimeString != null)
+		{
+			// wtf - last character sometimes is null
+			dateTimeString = dateTimeString.replace("\u0000", "");
+			if(dateTimeString.length() == 19)
+			{
+				attributes.put("date", dateTimeString.substring(0, 10).replace(':', '-'));
+				attributes.put("time", dateTimeString.substring(11));
+			}
+		}
+		Double aperture = probe.getAperture();
+		if(aperture != null)
+		{
+			String fStop = "f" + (Math.round(
+				Math.pow(Math.sqrt(2), aperture) * 10.0) / 10.0);
+			if(fStop.endsWith(".0"))
+			{
+				fStop = fStop.substring(0, fStop.length() - 2);
+			}
+			attributes.put("aperture", fStop);
+		}
+		Double exposureTime = probe.getExposureTime();
+		if(exposureTime != null)
+		{
+			double inverse = 1.0 / exposureTime;
+			String speed;
+			if(Math.abs(inverse - Math.round(inverse)) < 0.001)
+			{
+				speed = "1/" + (int)inverse;
+			}
+			else
+			{
+				speed = exposureTime + "s";
+			}
+			attributes.put("shutterSpeed", speed);
+		}
+		Double focalLength = probe.getFocalLength();
+		if(focalLength != null)
+		{
+			attributes.put("focalLength", Math.round(focalLength) + "mm");
+		}
+		Integer iso = probe.getIso();
+		if(iso != null)
+		{
+			attributes.put("iso", iso + "");
+		}
+
+		// GPS
+		if(probe.hasLocation())
+		{
+			double longitude = probe.getLongitude();
+			longitude = Math.round(longitude * 10000000000.0) / 10000000000.0;
+			attributes.put("longitude", "" + longitude);
+			double latitude = probe.getLatitude();
+			latitude = Math.round(latitude * 10000000000.0) / 10000000000.0;
+			attributes.put("latitude", "" + latitude);
+			attributes.put("locationDisplay",
+				getPositionString(latitude, "N", "S") + " "
+				+ getPositionString(longitude, "E", "W"));
+		}
+	}
+
+	/**
+	 * Loads metadata from a cache file element.
+	 * @param e Element previously written by {@link #add(Element)}
+	 * @throws InternalException If the element is invalid
+	 */
+	PicMetadata(Element e) throws InternalException
+	{
+		hash = e.getAttribute("hash");
+		try
+		{
+			size = Integer.parseInt(e.getAttribute("size"));
+			width = Integer.parseInt(e.getAttribute("width"));
+			height = Integer.parseInt(e.getAttribute("height"));
+			lastModified = Long.parseLong(e.getAttribute("lastModified"));
+		}
+		catch(NumberFormatException x)
+		{
+			throw new InternalException(
+				"Cached picture metadata has invalid size/width/height/lastModified");
+		}
+		NodeList exifList = e.getElementsByTagName("exif");
+		if(exifList.getLength() > 0)
+		{
+			NamedNodeMap exif = exifList.item(0).getAttributes();
+			for(int i=0; i<exif.getLength(); i++)
+			{
+				Node attribute = exif.item(i);
+				attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+			}
+		}
+	}
+
+	/**
+	 * Writes metadata to a cache file element.
+	 * @param picEl Element to receive attributes and exif child
+	 */
+	void add(Element picEl)
+	{
+		picEl.setAttribute("hash", hash);
+		picEl.setAttribute("size", size + "");
+		picEl.setAttribute("width", width + "");
+		picEl.setAttribute("height", height + "");
+		picEl.setAttribute("lastModified", lastModified + "");
+		if(!attributes.isEmpty())
+		{
+			Element exifEl = picEl.getOwnerDocument().createElement("exif");
+			picEl.appendChild(exifEl);
+			for(Map.Entry<String, String> attribute : attributes.entrySet())
+			{
+				exifEl.setAttribute(attribute.getKey(), attribute.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param picFile Picture file
+	 * @return True if the file still has the size and modified date it had
+	 *   when this metadata was read
+	 */
+	boolean matches(File picFile)
+	{
+		return picFile.lastModified() == lastModified && picFile.length() == size;
+	}
+
+	private static String getPositionString(
+		double position, String positive, String negative)
+	{
+		String letter = position >= 0 ? positive : negative;
+		double result = Math.abs(position);
+		int degrees = (int)Math.floor(result);
+		result -= degrees;
+		result *= 60;
+		int minutes = (int)Math.floor(result);
+		result -= minutes;
+		result *= 60;
+		int seconds = (int)Math.floor(result);
+		return degrees + "\u00b0" + minutes + "\u2032"
+			+ seconds + "\u2033" + letter;
+	}
+
+	/**
+	 * @return Short hash (8 character)
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * @return Size in bytes
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Width of original image in pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Height of original image in pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return EXIF-derived attributes (name to value) in the order they
+	 *   should be added to the pic element
+	 */
+	public Map<String, String> getAttributes()
+	{
+		return Collections.unmodifiableMap(attributes);
+	}
+}
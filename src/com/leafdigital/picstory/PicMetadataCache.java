@@ -0,0 +1,142 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Metadata for all the pictures in one story, saved on disk so that when the
+ * story is rebuilt, only pictures whose files have changed need to be read.
+ * <p>
+ * Not thread-safe; each instance is used by a single thread. Only the thread
+ * building a story saves the file.
+ */
+class PicMetadataCache
+{
+	private File cacheFile;
+	private Map<String, PicMetadata> pics = new HashMap<String, PicMetadata>();
+	private boolean changed;
+
+	/**
+	 * Loads the cache file if it exists. If the file can't be read, the cache
+	 * starts empty and all pictures will be read again.
+	 * @param xml XML processors
+	 * @param cacheFile Cache file
+	 * @param load False to ignore any existing file
+	 */
+	PicMetadataCache(XmlProcessors xml, File cacheFile, boolean load)
+	{
+		this.cacheFile = cacheFile;
+		if(!load || !cacheFile.exists())
+		{
+			changed = true;
+			return;
+		}
+		try
+		{
+			Element root = xml.parseFile(cacheFile).getDocumentElement();
+			if(!"1".equals(root.getAttribute("cacheVersion")))
+			{
+				changed = true;
+				return;
+			}
+			NodeList picList = root.getElementsByTagName("pic");
+			for(int i=0; i<picList.getLength(); i++)
+			{
+				Element picEl = (Element)picList.item(i);
+				pics.put(picEl.getAttribute("src"), new PicMetadata(picEl));
+			}
+		}
+		catch(Exception e)
+		{
+			// Corrupt cache file; just start again
+			pics.clear();
+			changed = true;
+		}
+	}
+
+	/**
+	 * @param src Picture name (as in pic src= attribute)
+	 * @param picFile Picture file, or null to return cached metadata without
+	 *   checking whether the file has changed
+	 * @return Cached metadata, or null if there isn't any or the file has
+	 *   changed since
+	 */
+	PicMetadata get(String src, File picFile)
+	{
+		PicMetadata metadata = pics.get(src);
+		if(metadata != null && (picFile == null || metadata.matches(picFile)))
+		{
+			return metadata;
+		}
+		return null;
+	}
+
+	/**
+	 * @param src Picture name (as in pic src= attribute)
+	 * @param metadata Newly-read metadata
+	 */
+	void put(String src, PicMetadata metadata)
+	{
+		pics.put(src, metadata);
+		changed = true;
+	}
+
+	/**
+	 * Saves the cache file if anything changed.
+	 * @param xml XML processors
+	 * @param keep Pictures that are still used; any others are discarded
+	 * @throws InternalException Error creating folder or XML
+	 * @throws IOException Error writing file
+	 */
+	void save(XmlProcessors xml, Collection<String> keep)
+		throws InternalException, IOException
+	{
+		if(pics.keySet().retainAll(keep))
+		{
+			changed = true;
+		}
+		if(!changed)
+		{
+			return;
+		}
+
+		Document cache = xml.newDocument();
+		Element root = cache.createElement("pics");
+		cache.appendChild(root);
+		root.setAttribute("cacheVersion", "1");
+		for(Map.Entry<String, PicMetadata> entry : pics.entrySet())
+		{
+			Element picEl = cache.createElement("pic");
+			root.appendChild(picEl);
+			picEl.setAttribute("src", entry.getKey());
+			entry.getValue().add(picEl);
+		}
+		String cacheString = xml.saveString(cache);
+
+		// Write via a temp file so nobody reads a partial file
+		Story.saveCacheFile(cacheFile,
+			cacheString.getBytes(Charset.forName("UTF-8")));
+		changed = false;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A complete page, encoded and ready to send, so that it can be kept and
+ * sent again.
+ */
+class RenderedPage extends Compressible
+{
+	private String contentType, tag;
+	private long generation;
+
+	/**
+	 * @param contentType Content type
+	 * @param data Page data (UTF-8)
+	 * @param generation Page generation (see
+	 *   {@link MainServlet#getPageGeneration()}) when it was rendered
+	 * @throws InternalException If Java is missing the SHA-1 provider
+	 */
+	RenderedPage(String contentType, byte[] data, long generation)
+		throws InternalException
+	{
+		super(data);
+		this.contentType = contentType;
+		this.generation = generation;
+		try
+		{
+			// The two content types need different tags
+			tag = Util.hash(data).substring(0, 16)
+				+ (contentType.equals("text/html") ? "h" : "x");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new InternalException(e);
+		}
+	}
+
+	/**
+	 * @return Content type
+	 */
+	public String getContentType()
+	{
+		return contentType;
+	}
+
+	/**
+	 * @return ETag (without quotes)
+	 */
+	public String getTag()
+	{
+		return tag;
+	}
+
+	/**
+	 * @param generation Current page generation
+	 * @return True if the page was rendered in that generation
+	 */
+	public boolean isCurrent(long generation)
+	{
+		return this.generation == generation;
+	}
+}
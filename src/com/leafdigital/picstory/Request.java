@@ -19,7 +19,9 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.picstory;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.nio.charset.Charset;
+import java.util.regex.*;
 
 import javax.servlet.http.*;
 
@@ -34,18 +36,69 @@ public class Request
 	public final static int UNKNOWN_LENGTH = -1;
 
 	private final static long ONE_YEAR = 365L * 24L * 3600L * 1000L;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Request attribute set by Tomcat if it can send files itself.
+	 */
+	private final static String SENDFILE_SUPPORT =
+		"org.apache.tomcat.sendfile.support";
+
+	/**
+	 * Prefix for request attributes that tell Tomcat which file to send.
+	 */
+	private final static String SENDFILE_PREFIX = "org.apache.tomcat.sendfile.";
+
+	/**
+	 * Single byte range: bytes=first-last, bytes=first- or bytes=-suffix.
+	 */
+	private final static Pattern REGEX_RANGE = Pattern.compile(
+		"bytes=([0-9]{0,18})-([0-9]{0,18})");
+
+	/**
+	 * Returned by getRange if the range can't be satisfied.
+	 */
+	private final static long[] UNSATISFIABLE = new long[0];
+
+	/**
+	 * Discards all data (used for HEAD requests).
+	 */
+	private final static OutputStream NO_BODY = new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+		}
+	};
+
 	private HttpServletRequest request;
 	private HttpServletResponse response;
-	private boolean sentData;
+	private boolean sentData, head, publicReload;
+
+	/**
+	 * ETag (including quotes) set by handleConditional, or null.
+	 */
+	private String etag;
 
 	/**
 	 * @param request HTTP request
 	 * @param response HTTP response
+	 * @param head True if this is a HEAD request, so that no data is sent
+	 * @param publicReload True if anybody may use the ?reload parameter
 	 */
-	public Request(HttpServletRequest request, HttpServletResponse response)
+	public Request(HttpServletRequest request, HttpServletResponse response,
+		boolean head, boolean publicReload)
 	{
 		this.request = request;
 		this.response = response;
+		this.head = head;
+		this.publicReload = publicReload;
 	}
 
 	/**
@@ -65,11 +118,20 @@ public class Request
 	}
 
 	/**
-	 * @return True if this is a debug request (?debug parameter)
+	 * @return True if this is a reload request (?reload parameter, if public
+	 *   reload is turned on; otherwise reloads go through the admin page)
 	 */
 	public boolean isReload()
 	{
-		return request.getParameter("reload") != null;
+		return publicReload && request.getParameter("reload") != null;
+	}
+
+	/**
+	 * @return True if this is a HEAD request (output methods send headers only)
+	 */
+	public boolean isHead()
+	{
+		return head;
 	}
 
 	/**
@@ -81,20 +143,121 @@ public class Request
 	}
 
 	/**
-	 * Outputs a page as XHTML if possible.
+	 * Outputs a page as XHTML if possible, writing each part in turn.
 	 * @param statusCode Status code (HttpServletResponse.SC_xx)
-	 * @param page Page content
+	 * @param parts Page content (UTF-8) in parts, as from
+	 *   {@link Template#getParts(String, java.util.Map)}
 	 * @throws IOException Any error
 	 */
-	public void outputXhtml(int statusCode, String page) throws IOException
+	public void outputXhtml(int statusCode, byte[][] parts) throws IOException
 	{
-		outputText(statusCode, getXhtmlMimeType(), page);
+		response.addHeader("Vary", "Accept");
+		response.setCharacterEncoding("UTF-8");
+		int length = 0;
+		for(byte[] part : parts)
+		{
+			length += part.length;
+		}
+		OutputStream out = outputBinaryHeaders(statusCode, getXhtmlMimeType(),
+			length);
+		for(byte[] part : parts)
+		{
+			out.write(part);
+		}
+		out.close();
+	}
+
+	/**
+	 * Outputs a rendered page (status 200). It has an ETag based on its content,
+	 * so repeat requests can be answered with 304.
+	 * @param page Page
+	 * @throws IOException Any error
+	 */
+	public void outputPage(RenderedPage page) throws IOException
+	{
+		response.addHeader("Vary", "Accept");
+		outputCompressible(page.getContentType(), page, page.getTag(), false);
+	}
+
+	/**
+	 * Outputs UTF-8 text (status 200), compressed if the client accepts gzip
+	 * and compression helps. Handles conditional requests; the compressed
+	 * version has a different ETag.
+	 * @param contentType Content type
+	 * @param text Text to send
+	 * @param tag ETag (without quotes) of uncompressed version
+	 * @param immutable True if the content at this URL never changes
+	 * @throws IOException Any error
+	 */
+	public void outputCompressible(String contentType, Compressible text,
+		String tag, boolean immutable) throws IOException
+	{
+		response.addHeader("Vary", "Accept-Encoding");
+		byte[] data = text.getData();
+		byte[] gzipped = acceptsGzip() ? text.getGzipped() : null;
+		if(gzipped != null)
+		{
+			data = gzipped;
+			tag += "g";
+		}
+		if(handleConditional(tag, immutable))
+		{
+			return;
+		}
+		if(gzipped != null)
+		{
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		outputText(HttpServletResponse.SC_OK, contentType, data);
+	}
+
+	/**
+	 * @return True if the Accept-Encoding header allows gzip
+	 */
+	public boolean acceptsGzip()
+	{
+		String accept = request.getHeader("Accept-Encoding");
+		if(accept == null)
+		{
+			return false;
+		}
+		float gzip = -1f, any = -1f;
+		for(String coding : accept.split(","))
+		{
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			float quality = 1f;
+			for(int i=1; i<params.length; i++)
+			{
+				String param = params[i].trim();
+				if(param.startsWith("q="))
+				{
+					try
+					{
+						quality = Float.parseFloat(param.substring(2));
+					}
+					catch(NumberFormatException e)
+					{
+						quality = 0f;
+					}
+				}
+			}
+			if(name.equals("gzip") || name.equals("x-gzip"))
+			{
+				gzip = quality;
+			}
+			else if(name.equals("*"))
+			{
+				any = quality;
+			}
+		}
+		return gzip > 0f || (gzip < 0f && any > 0f);
 	}
 
 	/**
 	 * @return MIME type to use for an XHTML response to this request
 	 */
-	private String getXhtmlMimeType()
+	public String getXhtmlMimeType()
 	{
 		String accept = request.getHeader("accept");
 		boolean xhtml = accept != null && accept.contains("application/xhtml+xml");
@@ -110,10 +273,22 @@ public class Request
 	 */
 	public void outputText(int statusCode, String contentType, String page)
 		throws IOException
+	{
+		outputText(statusCode, contentType, page.getBytes(UTF8));
+	}
+
+	/**
+	 * Outputs text that is already encoded as UTF-8.
+	 * @param statusCode Status code
+	 * @param contentType Content type
+	 * @param data Page content (UTF-8)
+	 * @throws IOException Any error
+	 */
+	public void outputText(int statusCode, String contentType, byte[] data)
+		throws IOException
 	{
 		response.setCharacterEncoding("UTF-8");
-		outputBinary(statusCode, contentType,
-			page.getBytes(Charset.forName("UTF-8")));
+		outputBinary(statusCode, contentType, data);
 	}
 
 	/**
@@ -127,23 +302,213 @@ public class Request
 		throws IOException
 	{
 		sentData = true;
-		OutputStream out = outputBinaryHeaders(statusCode, contentType, data.length);
-		out.write(data);
+		long[] range = getRange(statusCode, data.length);
+		if(range == UNSATISFIABLE)
+		{
+			return;
+		}
+		OutputStream out;
+		if(range == null)
+		{
+			out = outputBinaryHeaders(statusCode, contentType, data.length);
+			out.write(data);
+		}
+		else
+		{
+			out = outputPartialHeaders(contentType, range, data.length);
+			out.write(data, (int)range[0], (int)(range[1] - range[0]));
+		}
 		out.close();
 	}
 
 	/**
+	 * Outputs the contents of a file. If the container supports it (Tomcat
+	 * with the NIO or APR connector) it sends the file itself, without the
+	 * data passing through Java at all. Otherwise the file channel is
+	 * transferred to the response stream; that still copies the data, through
+	 * the JDK's own buffer, because the target is not a real channel.
 	 * @param statusCode Status code
-	 * @return Output writer that you should now write the data to
+	 * @param contentType Content type
+	 * @param file File to send
+	 * @param length Length of file in bytes
+	 * @throws FileNotFoundException If the file doesn't exist, in which case
+	 *   nothing has been sent (when the container sends the file, it doesn't
+	 *   check this)
+	 * @throws IOException Any other error
+	 */
+	public void outputFile(int statusCode, String contentType, File file,
+		int length) throws IOException
+	{
+		long[] range = getRange(statusCode, length);
+		if(range == UNSATISFIABLE)
+		{
+			return;
+		}
+		long start = 0, end = length;
+		if(range != null)
+		{
+			start = range[0];
+			end = range[1];
+		}
+
+		if(head)
+		{
+			startFileHeaders(statusCode, contentType, range, length);
+			return;
+		}
+
+		if(Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)))
+		{
+			startFileHeaders(statusCode, contentType, range, length);
+			request.setAttribute(SENDFILE_PREFIX + "filename",
+				file.getAbsolutePath());
+			request.setAttribute(SENDFILE_PREFIX + "start", Long.valueOf(start));
+			request.setAttribute(SENDFILE_PREFIX + "end", Long.valueOf(end));
+			return;
+		}
+
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			OutputStream out = startFileHeaders(statusCode, contentType, range,
+				length);
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = start;
+			while(position < end)
+			{
+				long sent = channel.transferTo(position, end - position, target);
+				if(sent <= 0)
+				{
+					// File got shorter
+					break;
+				}
+				position += sent;
+			}
+			out.close();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @param statusCode Status code
+	 * @param contentType Content type
+	 * @param range Range from getRange
+	 * @param length Length of whole file
+	 * @return Output stream for data
 	 * @throws IOException Any error
 	 */
-	public PrintWriter outputXhtmlHeaders(int statusCode) throws IOException
+	private OutputStream startFileHeaders(int statusCode, String contentType,
+		long[] range, int length) throws IOException
+	{
+		if(range == null)
+		{
+			return outputBinaryHeaders(statusCode, contentType, length);
+		}
+		else
+		{
+			return outputPartialHeaders(contentType, range, length);
+		}
+	}
+
+	/**
+	 * Works out whether to send part of the data, based on the Range header.
+	 * Ranges are only supported for data that has an ETag (see
+	 * {@link #handleConditional(String, boolean)}), and only a single range;
+	 * otherwise the whole thing is sent.
+	 * <p>
+	 * If the range can't be satisfied, this sends a 416 response.
+	 * @param statusCode Status code that would be sent for the whole data
+	 * @param length Length of whole data
+	 * @return Null to send everything, UNSATISFIABLE if a response has been
+	 *   sent, or an array of start and end (exclusive) positions
+	 * @throws IOException Any error
+	 */
+	private long[] getRange(int statusCode, long length) throws IOException
+	{
+		String header = request.getHeader("Range");
+		if(etag == null || statusCode != HttpServletResponse.SC_OK
+			|| header == null)
+		{
+			return null;
+		}
+
+		// If the client's copy is out of date, send everything
+		String ifRange = request.getHeader("If-Range");
+		if(ifRange != null && !ifRange.trim().equals(etag))
+		{
+			return null;
+		}
+
+		Matcher m = REGEX_RANGE.matcher(header.trim());
+		if(!m.matches() || (m.group(1).length() == 0 && m.group(2).length() == 0))
+		{
+			// Multiple ranges or something we don't understand
+			return null;
+		}
+		long start, end;
+		if(m.group(1).length() == 0)
+		{
+			start = Math.max(0L, length - Long.parseLong(m.group(2)));
+			end = length;
+		}
+		else
+		{
+			start = Long.parseLong(m.group(1));
+			end = m.group(2).length() == 0 ? length
+				: Math.min(length, Long.parseLong(m.group(2)) + 1);
+			if(end <= start && m.group(2).length() != 0 && start < length)
+			{
+				// Last position before first is invalid, so ignore the header
+				return null;
+			}
+		}
+		if(start >= length || end <= start)
+		{
+			sentData = true;
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + length);
+			return UNSATISFIABLE;
+		}
+		return new long[] { start, end };
+	}
+
+	/**
+	 * Sets headers for a 206 Partial Content response.
+	 * @param contentType Content type
+	 * @param range Start and end (exclusive)
+	 * @param length Length of whole data
+	 * @return Output stream for the data
+	 * @throws IOException Any error
+	 */
+	private OutputStream outputPartialHeaders(String contentType, long[] range,
+		long length) throws IOException
+	{
+		response.setHeader("Content-Range", "bytes " + range[0] + "-"
+			+ (range[1] - 1) + "/" + length);
+		return outputBinaryHeaders(HttpServletResponse.SC_PARTIAL_CONTENT,
+			contentType, (int)(range[1] - range[0]));
+	}
+
+	/**
+	 * @param statusCode Status code
+	 * @return Output stream that you should now write the UTF-8 data to
+	 * @throws IOException Any error
+	 */
+	public OutputStream outputXhtmlHeaders(int statusCode) throws IOException
 	{
 		sentData = true;
 		response.setContentType(getXhtmlMimeType());
 		response.setCharacterEncoding("UTF-8");
 		response.setStatus(statusCode);
-		return response.getWriter();
+		if(head)
+		{
+			return NO_BODY;
+		}
+		return response.getOutputStream();
 	}
 
 	/**
@@ -163,6 +528,10 @@ public class Request
 		{
 			response.setContentLength(length);
 		}
+		if(head)
+		{
+			return NO_BODY;
+		}
 		return response.getOutputStream();
 	}
 
@@ -177,28 +546,61 @@ public class Request
 	}
 
 	/**
-	 * Ensures that any If-Modified-Since header results in a Not Modified
-	 * response.
-	 * @return True if request includes If-Modified-Since header and a response
-	 *   has been sent
+	 * Sets the ETag for the response and checks the request's conditional
+	 * headers. If the client already has this version, sends a 304 Not
+	 * Modified response. Also allows the data to be sent in part (Range).
+	 * @param tag Tag (without quotes); must change whenever the data does
+	 * @param immutable True if the data at this URL never changes (it includes
+	 *   a hash), in which case any If-Modified-Since also means it's unchanged
+	 * @return True if a 304 response has been sent
 	 */
-	public boolean handleIfModifiedSince()
+	public boolean handleConditional(String tag, boolean immutable)
 	{
-		long modified = request.getDateHeader("If-Modified-Since");
-		if(modified != -1)
+		etag = "\"" + tag + "\"";
+		response.setHeader("ETag", etag);
+		response.setHeader("Accept-Ranges", "bytes");
+
+		boolean notModified;
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if(ifNoneMatch != null)
+		{
+			notModified = false;
+			for(String candidate : ifNoneMatch.split(","))
+			{
+				candidate = candidate.trim();
+				if(candidate.startsWith("W/"))
+				{
+					candidate = candidate.substring(2);
+				}
+				if(candidate.equals("*") || candidate.equals(etag))
+				{
+					notModified = true;
+					break;
+				}
+			}
+		}
+		else
+		{
+			notModified = immutable && request.getHeader("If-Modified-Since") != null;
+		}
+
+		if(notModified)
 		{
+			sentData = true;
 			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-			return true;
 		}
-		return false;
+		return notModified;
 	}
 
 	/**
-	 * Make sure result doesn't expire from cache
+	 * Make sure result doesn't expire from cache (for URLs that include a hash,
+	 * so the data never changes).
 	 */
 	public void preventExpiry()
 	{
 		response.addDateHeader("Expires", System.currentTimeMillis() + ONE_YEAR);
+		response.setHeader("Cache-Control", "public, max-age="
+			+ (ONE_YEAR / 1000L) + ", immutable");
 	}
 
 	/**
@@ -19,6 +19,8 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.picstory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
@@ -26,30 +28,57 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Handles requests for static resources (CSS, etc).
+ * <p>
+ * Loaded resources are held in an immutable map, which requests (and page
+ * templates) read without locking. When a resource is loaded or changes, a
+ * new map is built and swapped in.
+ * <p>
+ * CSS and JavaScript resources can be minified. A text resource can also be
+ * a bundle of several others: if there is no file called (for example)
+ * all.css, but there is a file all.css.bundle, that file lists the names of
+ * CSS files (one per line) to join together.
+ * <p>
+ * Page templates can also include a text resource in the page itself (see
+ * getText), so that the page doesn't wait for a separate request.
  */
 public class ResourceHandler extends RequestHandler
 {
+	private final static String BUNDLE_EXTENSION = ".bundle";
+
 	private File resourceFolder;
+	private boolean minify;
+
+	/**
+	 * Current resources. Never modified; replaced (with lock held) instead.
+	 */
+	private volatile Map<String, Resource> resources =
+		new HashMap<String, Resource>();
+
+	/**
+	 * Held while replacing the resources map.
+	 */
+	private final Object swapLock = new Object();
 
-	private Map<String, Resource> resources = new HashMap<String, Resource>();
+	/**
+	 * Increases whenever resources are reloaded.
+	 */
+	private volatile int generation;
 
-	private class Resource
+	private class Resource extends Compressible
 	{
-		byte[] data;
 		String hash;
-
-		Resource(byte[] data) throws NoSuchAlgorithmException
-		{
-			this.data = data;
-			this.hash = Util.hash(data).substring(0, 8);
-		}
+		Set<String> sources;
 
 		/**
-		 * @return Data
+		 * @param data Data to send
+		 * @param hash Short hash of data
+		 * @param sources Names of source files
 		 */
-		public byte[] getData()
+		Resource(byte[] data, String hash, Set<String> sources)
 		{
-			return data;
+			super(data);
+			this.hash = hash;
+			this.sources = sources;
 		}
 
 		/**
@@ -115,11 +144,14 @@ public class ResourceHandler extends RequestHandler
 	/**
 	 * @param mainServlet Main servlet
 	 * @param resourceFolder Resource folder
+	 * @param minify True to minify CSS and JavaScript
 	 */
-	public ResourceHandler(MainServlet mainServlet, File resourceFolder)
+	public ResourceHandler(MainServlet mainServlet, File resourceFolder,
+		boolean minify)
 	{
 		super(mainServlet);
 		this.resourceFolder = resourceFolder;
+		this.minify = minify;
 	}
 
 	/**
@@ -134,11 +166,6 @@ public class ResourceHandler extends RequestHandler
 	public void get(Request r, String base, String hash, String extension)
 		throws UserException, IOException, NoSuchAlgorithmException
 	{
-		// Check for If-Modified-Since (resources use hash so are never modified)
-		if(r.handleIfModifiedSince())
-		{
-			return;
-		}
 		String file = base + extension;
 
 		// Obtain resource
@@ -166,14 +193,20 @@ public class ResourceHandler extends RequestHandler
 		// Don't let this expire
 		r.preventExpiry();
 
-		// Send it
+		// Send it (text files are UTF-8 already, so there's no need to decode;
+		// they can be compressed). Conditional requests are handled using the
+		// hash, as resources with a given hash are never modified.
 		if(type.isText())
 		{
-			r.outputText(HttpServletResponse.SC_OK, type.getType(),
-				new String(resource.getData(), "UTF-8"));
+			r.outputCompressible(type.getType(), resource,
+				resource.getShortHash(), true);
 		}
 		else
 		{
+			if(r.handleConditional(resource.getShortHash(), true))
+			{
+				return;
+			}
 			r.outputBinary(HttpServletResponse.SC_OK,
 				type.getType(), resource.getData());
 		}
@@ -185,38 +218,170 @@ public class ResourceHandler extends RequestHandler
 	 * @throws IllegalArgumentException File not found etc
 	 * @throws NoSuchAlgorithmException Stupid configuration error
 	 * @throws IOException Read error
+	 * @throws InternalException Unknown file type
 	 */
-	private Resource getResource(String file)
-		throws IllegalArgumentException, NoSuchAlgorithmException, IOException
+	private Resource getResource(String file) throws IllegalArgumentException,
+		NoSuchAlgorithmException, IOException, InternalException
 	{
-		Resource resource;
-		synchronized(this)
+		Resource resource = resources.get(file);
+		if(resource != null)
+		{
+			return resource;
+		}
+
+		int loadGeneration = generation;
+		resource = loadResource(file);
+
+		synchronized(swapLock)
 		{
-			if(!resources.containsKey(file))
+			// Another thread might have loaded it already
+			Resource existing = resources.get(file);
+			if(existing != null)
+			{
+				return existing;
+			}
+
+			// Don't keep it if resources changed while it was loading
+			if(generation == loadGeneration)
 			{
-				// Check filename is safe
-				if(!file.matches(MainServlet.REGEX_PART_LCNAME
-					+ "\\." + MainServlet.REGEX_PART_LCNAME))
+				Map<String, Resource> newResources =
+					new HashMap<String, Resource>(resources);
+				newResources.put(file, resource);
+				resources = newResources;
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Loads a resource (or bundle) from disk, minifying it if required.
+	 * @param file Filename
+	 * @return Resource
+	 * @throws IllegalArgumentException File not found etc
+	 * @throws NoSuchAlgorithmException Stupid configuration error
+	 * @throws IOException Read error
+	 * @throws InternalException Unknown file type
+	 */
+	private Resource loadResource(String file) throws IllegalArgumentException,
+		NoSuchAlgorithmException, IOException, InternalException
+	{
+		// Check filename is safe
+		checkName(file);
+		Type type = Type.get(file);
+
+		// Look for file, or a bundle
+		Set<String> sources = new LinkedHashSet<String>();
+		File f = new File(resourceFolder, file);
+		if(f.exists())
+		{
+			sources.add(file);
+		}
+		else
+		{
+			File bundle = new File(resourceFolder, file + BUNDLE_EXTENSION);
+			if(!bundle.exists() || !type.isText())
+			{
+				throw new IllegalArgumentException(
+					"Resource '" + Util.esc(file) + "' not found");
+			}
+			for(String line : Util.loadString(
+				new FileInputStream(bundle)).split("\n"))
+			{
+				String source = line.trim();
+				if(source.length() > 0)
 				{
-					throw new IllegalArgumentException(
-						"Resource '" + Util.esc(file) + "' contains illegal characters");
+					checkName(source);
+					if(Type.get(source) != type)
+					{
+						throw new IllegalArgumentException("Resource '"
+							+ Util.esc(source) + "' in bundle '" + Util.esc(file)
+							+ "' is the wrong type");
+					}
+					if(!new File(resourceFolder, source).exists())
+					{
+						throw new IllegalArgumentException("Resource '"
+							+ Util.esc(source) + "' in bundle '" + Util.esc(file)
+							+ "' not found");
+					}
+					sources.add(source);
 				}
+			}
+		}
 
-				// Look for file
-				File f = new File(resourceFolder, file);
-				if(!f.exists())
+		// Read files
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for(String source : sources)
+		{
+			byte[] data = Util.loadBytes(new File(resourceFolder, source));
+			joined.write(data);
+			if(sources.size() > 1 && data.length > 0 && data[data.length - 1] != '\n')
+			{
+				joined.write('\n');
+			}
+		}
+		byte[] data = joined.toByteArray();
+
+		if(minify && type == Type.CSS)
+		{
+			data = Minifier.css(new String(data, "UTF-8")).getBytes("UTF-8");
+		}
+		else if(minify && type == Type.JAVASCRIPT)
+		{
+			data = Minifier.js(new String(data, "UTF-8")).getBytes("UTF-8");
+		}
+
+		// The hash is of the data actually sent, so the URL changes if the
+		// minifier output does
+		String hash = Util.hash(data).substring(0, 8);
+		return new Resource(data, hash, sources);
+	}
+
+	/**
+	 * @param file Resource filename
+	 * @throws IllegalArgumentException If the filename isn't safe
+	 */
+	private static void checkName(String file) throws IllegalArgumentException
+	{
+		if(!file.matches(MainServlet.REGEX_PART_LCNAME
+			+ "\\." + MainServlet.REGEX_PART_LCNAME))
+		{
+			throw new IllegalArgumentException(
+				"Resource '" + Util.esc(file) + "' contains illegal characters");
+		}
+	}
+
+	/**
+	 * Called by the change monitor when a resource file changes, so that it
+	 * will be loaded again next time.
+	 * @param file Filename, or null if any resource might have changed
+	 */
+	public void changed(String file)
+	{
+		synchronized(swapLock)
+		{
+			Map<String, Resource> newResources = new HashMap<String, Resource>();
+			if(file != null)
+			{
+				// Keep everything except the file, and any bundle it's in or defines
+				newResources.putAll(resources);
+				if(file.endsWith(BUNDLE_EXTENSION))
 				{
-					throw new IllegalArgumentException(
-						"Resource '" + Util.esc(file) + "' not found");
+					newResources.remove(file.substring(
+						0, file.length() - BUNDLE_EXTENSION.length()));
 				}
-
-				// Read file
-				resources.put(file,
-					new Resource(Util.loadBytes(new FileInputStream(f))));
+				for(Iterator<Resource> i = newResources.values().iterator();
+					i.hasNext();)
+				{
+					if(i.next().sources.contains(file))
+					{
+						i.remove();
+					}
+				}
+				newResources.remove(file);
 			}
-			resource = resources.get(file);
+			generation++;
+			resources = newResources;
 		}
-		return resource;
 	}
 
 	/**
@@ -224,10 +389,16 @@ public class ResourceHandler extends RequestHandler
 	 */
 	public void reload()
 	{
-		synchronized(this)
-		{
-			resources.clear();
-		}
+		changed(null);
+	}
+
+	/**
+	 * @return Number that changes whenever resources are reloaded (their
+	 *   hashes, and so URLs, might have changed)
+	 */
+	public int getGeneration()
+	{
+		return generation;
 	}
 
 	/**
@@ -252,4 +423,54 @@ public class ResourceHandler extends RequestHandler
 			throw new InternalException(e);
 		}
 	}
+
+	/**
+	 * Gets the content of a text resource (minified, if enabled) so that it
+	 * can be included directly in a page, inside a style or script element.
+	 * The resource must be valid UTF-8 and must not contain &lt; or &amp;,
+	 * because those could end the element early (in HTML) or break the page
+	 * (in XHTML).
+	 * @param file Filename
+	 * @return Content
+	 * @throws IllegalArgumentException File not known, not text, or not safe
+	 *   to include
+	 * @throws InternalException Unexpected error
+	 */
+	public String getText(String file)
+		throws IllegalArgumentException, InternalException
+	{
+		if(!Type.get(file).isText())
+		{
+			throw new IllegalArgumentException(
+				"Resource '" + Util.esc(file) + "' is not text");
+		}
+		String text;
+		try
+		{
+			CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+			text = decoder.decode(
+				ByteBuffer.wrap(getResource(file).getData())).toString();
+		}
+		catch(CharacterCodingException e)
+		{
+			throw new IllegalArgumentException(
+				"Resource '" + Util.esc(file) + "' is not valid UTF-8");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new InternalException(e);
+		}
+		catch(IOException e)
+		{
+			throw new InternalException(e);
+		}
+		if(text.indexOf('<') != -1 || text.indexOf('&') != -1)
+		{
+			throw new IllegalArgumentException(
+				"Resource '" + Util.esc(file) + "' contains < or &");
+		}
+		return text;
+	}
 }
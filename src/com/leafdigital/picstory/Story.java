@@ -18,20 +18,16 @@ Copyright 2010 Samuel Marshall.
 */
 package com.leafdigital.picstory;
 
-import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.security.NoSuchAlgorithmException;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
-import javax.imageio.ImageIO;
-
-import org.apache.sanselan.*;
-import org.apache.sanselan.formats.jpeg.JpegImageMetadata;
-import org.apache.sanselan.formats.tiff.*;
-import org.apache.sanselan.formats.tiff.constants.TiffConstants;
 import org.w3c.dom.*;
 
 /**
@@ -42,21 +38,75 @@ class Story
 	private final static Pattern REGEX_PIC = Pattern.compile(
 		MainServlet.REGEX_PART_NAME);
 
-	private long lastUsed;
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Binary cache file: magic number ("PSTC") and version.
+	 */
+	private final static int CACHE_MAGIC = 0x50535443, CACHE_VERSION = 3;
+
+	/**
+	 * Binary cache file: size of fixed header, size of each pic table entry.
+	 */
+	private final static int CACHE_HEADER_SIZE = 48, CACHE_PIC_SIZE = 28;
+
+	/**
+	 * Binary cache file: size of fixed header in version 2 (which included
+	 * the content).
+	 */
+	private final static int CACHE_HEADER_SIZE_V2 = 56;
+
+	private MainServlet mainServlet;
+	private XmlProcessors xml;
+	private ExecutorService ingestPool;
+	private File storyFolder, cacheFolder;
+	private boolean reload;
 
 	private long lastModified, date;
-	private String title, content;
-	private Element description;
+	private String title, descriptionXml;
 	private Pic indexPic;
 
-	private Map<String, Pic> pics = new HashMap<String, Pic>();
+	/**
+	 * Rendered content (UTF-8); null until somebody asks for it.
+	 */
+	private volatile byte[] content;
+
+	/**
+	 * Stylesheet that content was rendered with; null if not rendered.
+	 */
+	private Template contentTemplate;
+
+	/**
+	 * Complete pages for this story, by content type and path to root.
+	 */
+	private ConcurrentMap<String, RenderedPage> pages =
+		new ConcurrentHashMap<String, RenderedPage>();
+
+	/**
+	 * Pictures sorted by filename (see {@link #getPic(String)}).
+	 */
+	private Pic[] pics;
+
+	private final static Comparator<Pic> PIC_ORDER = new Comparator<Pic>()
+	{
+		@Override
+		public int compare(Pic a, Pic b)
+		{
+			return a.getFilename().compareTo(b.getFilename());
+		}
+	};
 
 	/**
 	 * Loads a story from cache file or by creating it afresh (slow).
 	 * <p>
-	 * NOTE: This method is synchronized inside the story cache.
+	 * This only loads the story's details and pictures. The content is
+	 * rendered (or loaded from its own cache file) when first requested.
+	 * <p>
+	 * NOTE: The story cache makes sure only one thread builds a given story at
+	 * a time.
 	 * @param mainServlet Main servlet
 	 * @param xml XML processors
+	 * @param ingestPool Thread pool used to read picture files
 	 * @param cacheRoot Cache root folder
 	 * @param storyRoot Story root folder
 	 * @param storyName Story name
@@ -66,50 +116,38 @@ class Story
 	 * @throws IOException Any I/O error
 	 */
 	public Story(MainServlet mainServlet, XmlProcessors xml,
-		File cacheRoot, File storyRoot,
+		ExecutorService ingestPool, File cacheRoot, File storyRoot,
 		String storyName, long lastModified, boolean reload)
 		throws InternalException, IOException
 	{
+		this.mainServlet = mainServlet;
+		this.xml = xml;
+		this.ingestPool = ingestPool;
+		this.storyFolder = new File(storyRoot, storyName);
+		this.cacheFolder = new File(cacheRoot, storyName);
+		this.reload = reload;
+
 		// Check cache folder to see if we already have a cached version of this
 		// story
-		File cachedStory = new File(new File(cacheRoot, storyName), "story.cache");
+		File cachedStory = new File(cacheFolder, "story.cache");
 		if(!reload)
 		{
 			long fileLastModified = cachedStory.lastModified();
 			// If cache exists and is newer or equal to last modified date of original
-			if(fileLastModified >= lastModified)
+			if(fileLastModified >= lastModified && loadCache(cachedStory))
 			{
-				Document cache = xml.parseFile(cachedStory);
-				Element root = cache.getDocumentElement();
-				this.title = root.getElementsByTagName("title").item(0).
-					getFirstChild().getNodeValue();
-				this.description = (Element)root.getElementsByTagName(
-					"description").item(0);
-				this.content = root.getElementsByTagName("content").item(0).
-					getFirstChild().getNodeValue();
-				this.date = Long.parseLong(root.getAttribute("date"));
-				NodeList picList = root.getElementsByTagName("pic");
-				for(int i=0; i<picList.getLength(); i++)
-				{
-					Element picEl = (Element)picList.item(i);
-					Pic pic = new Pic(picEl);
-					pics.put(pic.getFilename(), pic);
-					if(pic.isIndexPic())
-					{
-						indexPic = pic;
-					}
-				}
-				this.lastModified = Long.parseLong(root.getAttribute("lastModified"));
 				return;
 			}
 		}
 
 		this.lastModified = lastModified;
 
-		// Load and parse index file
-		File storyFolder = new File(storyRoot, storyName);
+		// Load and parse index file, keeping a copy so that content is later
+		// rendered from the same version as these details
 		File storyIndex = new File(storyFolder, "index.xml");
-		Document d = xml.parseFile(storyIndex);
+		byte[] source = Util.loadBytes(storyIndex);
+		Document d = xml.parseString(storyIndex.getName(),
+			new String(source, UTF8));
 
 		// Get date (optional)
 		Element rootEl = d.getDocumentElement();
@@ -147,11 +185,64 @@ class Story
 			throw new InternalException(
 				"Unable to find description in '" + storyIndex + "'");
 		}
-		description = (Element)descriptionNodes.item(0);
+		Element description = (Element)descriptionNodes.item(0);
 
-		// Get list of images and process each one
-		Collection<Pic> picList = new LinkedList<Pic>();
+		// Get details of all pictures
+		List<Pic> picList = new LinkedList<Pic>();
+		addPicAttributes(d, true, picList);
+		for(Pic pic : picList)
+		{
+			if(pic.isIndexPic())
+			{
+				indexPic = pic;
+			}
+		}
+
+		// Keep description as a string rather than holding on to the document
+		// (after processing pics, in case it contains any)
+		descriptionXml = xml.saveFragment(description);
+
+		// Set index pic to first one if none was specified
+		if(indexPic == null)
+		{
+			Pic pic = picList.iterator().next();
+			pic.markIndexPic();
+			indexPic = pic;
+		}
+
+		// Build picture table
+		setPics(picList);
+
+		// Save cache files (source first, so it is never older than the details)
+		saveCacheFile(new File(cacheFolder, "source.cache"), source);
+		saveCache(cachedStory);
+	}
+
+	/**
+	 * Finds all the pictures in a story document and adds their details (id,
+	 * hash, size, dimensions and EXIF data) as attributes. Picture files are
+	 * only read if they aren't in the pics.cache file.
+	 * @param d Story document
+	 * @param rebuild True when building the story details: checks whether
+	 *   picture files have changed, honours the reload flag and saves
+	 *   pics.cache. False when rendering content for existing details: uses
+	 *   any cached data as is, so that it matches the details, and never
+	 *   writes the cache (only the building thread does that)
+	 * @param picList If not null, receives a Pic for each picture
+	 * @throws InternalException Any processing error
+	 * @throws IOException Any I/O error
+	 */
+	private void addPicAttributes(Document d, boolean rebuild, List<Pic> picList)
+		throws InternalException, IOException
+	{
+		// Get list of images and check each one exists
+		PicMetadataCache picCache = new PicMetadataCache(xml,
+			new File(cacheFolder, "pics.cache"), !(rebuild && reload));
 		NodeList picNodes = d.getElementsByTagName("pic");
+		PicMetadata[] picMetadata = new PicMetadata[picNodes.getLength()];
+		List<String> picNames = new ArrayList<String>();
+		List<Integer> pending = new ArrayList<Integer>();
+		List<Callable<PicMetadata>> tasks = new ArrayList<Callable<PicMetadata>>();
 		for(int i=0; i<picNodes.getLength(); i++)
 		{
 			Element picEl = (Element)picNodes.item(i);
@@ -163,224 +254,490 @@ class Story
 				throw new InternalException(
 					"Picture '" + picFileName + "': not found (invalid name)");
 			}
-			File picFile = new File(storyFolder, picFileName + ".jpg");
+			final File picFile = new File(storyFolder, picFileName + ".jpg");
 			if(!picFile.exists())
 			{
 				throw new InternalException(
 					"Picture '" + picFileName + "': not found");
 			}
+			picNames.add(picFileName);
+
+			// Use cached data if the file hasn't changed
+			picMetadata[i] = picCache.get(picFileName, rebuild ? picFile : null);
+			if(picMetadata[i] != null)
+			{
+				continue;
+			}
+
+			pending.add(i);
+			tasks.add(new Callable<PicMetadata>()
+			{
+				@Override
+				public PicMetadata call() throws Exception
+				{
+					return new PicMetadata(picFile);
+				}
+			});
+		}
+
+		// Read all the changed picture files in parallel
+		List<Future<PicMetadata>> results;
+		try
+		{
+			results = ingestPool.invokeAll(tasks);
+		}
+		catch(InterruptedException e)
+		{
+			throw new InternalException(e);
+		}
+		for(int i=0; i<results.size(); i++)
+		{
+			int index = pending.get(i);
+			picMetadata[index] = getResult(results.get(i));
+			picCache.put(picNames.get(index), picMetadata[index]);
+		}
+		if(rebuild)
+		{
+			picCache.save(xml, picNames);
+		}
+
+		// Add results to XML in document order
+		for(int i=0; i<picNodes.getLength(); i++)
+		{
+			Element picEl = (Element)picNodes.item(i);
+			String picFileName = picEl.getAttribute("src");
+			PicMetadata metadata = picMetadata[i];
 
 			// Give it a numeric id
 			picEl.setAttribute("id", "pic" + i);
 
-			// Load image bytes to make hash
-			byte[] imageBytes = Util.loadBytes(new FileInputStream(picFile));
-			String hash;
-			try
+			picEl.setAttribute("hash", metadata.getHash());
+			picEl.setAttribute("size", "" + metadata.getSize());
+			picEl.setAttribute("width", "" + metadata.getWidth());
+			picEl.setAttribute("height", "" + metadata.getHeight());
+
+			if(picList != null)
 			{
-				hash = Util.hash(imageBytes).substring(0, 8);
+				Pic pic = new Pic(picFileName, metadata.getHash(), metadata.getSize(),
+					metadata.getWidth(), metadata.getHeight());
+				if("y".equals(picEl.getAttribute("indexpic")))
+				{
+					pic.markIndexPic();
+				}
+				picList.add(pic);
 			}
-			catch(NoSuchAlgorithmException e)
+
+			for(Map.Entry<String, String> attribute :
+				metadata.getAttributes().entrySet())
 			{
-				throw new InternalException(e);
+				picEl.setAttribute(attribute.getKey(), attribute.getValue());
 			}
-			picEl.setAttribute("hash", hash);
-			picEl.setAttribute("size", "" + imageBytes.length);
-
-			// Load image to get basic data
-			BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-			picEl.setAttribute("width", "" + image.getWidth());
-			picEl.setAttribute("height", "" + image.getHeight());
+		}
+	}
 
-			Pic pic = new Pic(picFileName, hash, imageBytes.length,
-				image.getWidth(), image.getHeight());
-			if("y".equals(picEl.getAttribute("indexpic")))
+	/**
+	 * Loads story from the cache file.
+	 * @param cachedStory Cache file
+	 * @return True if loaded, false if the file is corrupt or an unknown
+	 *   version (the story should be rebuilt)
+	 * @throws InternalException Any processing error
+	 * @throws IOException Any I/O error
+	 */
+	private boolean loadCache(File cachedStory)
+		throws InternalException, IOException
+	{
+		// Current files are memory-mapped. Older ones, which are rewritten
+		// straight away, are read into memory instead: a file can't safely be
+		// replaced while it's mapped
+		long cacheModified = cachedStory.lastModified();
+		FileInputStream in = new FileInputStream(cachedStory);
+		ByteBuffer buffer;
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(8);
+			while(header.hasRemaining())
 			{
-				pic.markIndexPic();
-				indexPic = pic;
+				if(channel.read(header) == -1)
+				{
+					break;
+				}
 			}
-			picList.add(pic);
+			if(header.position() > 0 && header.get(0) == '<')
+			{
+				buffer = null;
+			}
+			else if(header.position() == 8 && header.getInt(4) == CACHE_VERSION)
+			{
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			else
+			{
+				buffer = ByteBuffer.wrap(Util.loadBytes(cachedStory));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
 
-			image = null;
-			imageBytes = null;
+		// Version 1 cache files were XML; load and convert them
+		if(buffer == null)
+		{
+			byte[] oldContent = loadXmlCache(cachedStory);
+			saveCache(cachedStory);
+			migrateContent(oldContent, cacheModified);
+			return true;
+		}
 
-			// Load metadata (this reads the file again, ah well)
-			try
+		// Check header and checksum
+		int size = buffer.limit();
+		if(size < CACHE_HEADER_SIZE_V2 + 4 || buffer.getInt(0) != CACHE_MAGIC
+			|| buffer.getInt(size - 4) != checksum(buffer, size - 4))
+		{
+			return false;
+		}
+		int version = buffer.getInt(4), headerSize;
+		switch(version)
+		{
+		case 2: headerSize = CACHE_HEADER_SIZE_V2; break;
+		case CACHE_VERSION: headerSize = CACHE_HEADER_SIZE; break;
+		default: return false;
+		}
+
+		try
+		{
+			lastModified = buffer.getLong(8);
+			date = buffer.getLong(16);
+			int picCount = buffer.getInt(24);
+			int indexPicNum = buffer.getInt(28);
+			title = getString(buffer, 32);
+			descriptionXml = getString(buffer, 40);
+
+			byte[] hash = new byte[8];
+			List<Pic> picList = new ArrayList<Pic>(picCount);
+			for(int i=0; i<picCount; i++)
 			{
-				JpegImageMetadata metadata =
-					(JpegImageMetadata)Sanselan.getMetadata(picFile);
-				if(metadata != null)
+				int entry = headerSize + i * CACHE_PIC_SIZE;
+				buffer.position(entry + 8);
+				buffer.get(hash);
+				Pic pic = new Pic(getString(buffer, entry), new String(hash, UTF8),
+					buffer.getInt(entry + 16), buffer.getInt(entry + 20),
+					buffer.getInt(entry + 24));
+				if(i == indexPicNum)
 				{
-					// Set metadata attributes
-					TiffField date = metadata.findEXIFValue(
-						TiffConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
-					if(date != null)
-					{
-						// wtf - last character sometimes is null
-						String dateTimeString = date.getStringValue().replace("\u0000", "");
-						if(dateTimeString.length() == 19)
-						{
-							picEl.setAttribute("date", dateTimeString.substring(0, 10).replace(':', '-'));
-							picEl.setAttribute("time", dateTimeString.substring(11));
-						}
-					}
-					TiffField aperture = metadata.findEXIFValue(
-						TiffConstants.EXIF_TAG_APERTURE_VALUE);
-					if(aperture != null)
-					{
-						String fStop = "f" + (Math.round(
-							Math.pow(Math.sqrt(2), aperture.getDoubleValue()) * 10.0) / 10.0);
-						if(fStop.endsWith(".0"))
-						{
-							fStop = fStop.substring(0, fStop.length() - 2);
-						}
-						picEl.setAttribute("aperture", fStop);
-					}
-					TiffField exposureTime = metadata.findEXIFValue(
-						TiffConstants.EXIF_TAG_EXPOSURE_TIME);
-					if(exposureTime != null)
-					{
-						double inverse = 1.0 / exposureTime.getDoubleValue();
-						String speed;
-						if(Math.abs(inverse - Math.round(inverse)) < 0.001)
-						{
-							speed = "1/" + (int)inverse;
-						}
-						else
-						{
-							speed = exposureTime + "s";
-						}
-						picEl.setAttribute("shutterSpeed", speed);
-					}
-					TiffField focalLength = metadata.findEXIFValue(
-						TiffConstants.EXIF_TAG_FOCAL_LENGTH);
-					if(focalLength != null)
-					{
-						picEl.setAttribute("focalLength", Math.round(focalLength.getDoubleValue()) + "mm");
-					}
-					TiffField iso = metadata.findEXIFValue(
-						TiffConstants.EXIF_TAG_ISO);
-					if(iso != null)
-					{
-						picEl.setAttribute("iso", iso.getIntValue() + "");
-					}
-
-					// GPS
-					TiffImageMetadata exifMetadata = metadata.getExif();
-					if(exifMetadata != null)
-					{
-						TiffImageMetadata.GPSInfo gpsInfo = exifMetadata.getGPS();
-						if(gpsInfo != null)
-						{
-							double longitude = gpsInfo.getLongitudeAsDegreesEast();
-							longitude = Math.round(longitude * 10000000000.0) / 10000000000.0;
-							picEl.setAttribute("longitude", "" + longitude);
-							double latitude = gpsInfo.getLatitudeAsDegreesNorth();
-							latitude = Math.round(latitude * 10000000000.0) / 10000000000.0;
-							picEl.setAttribute("latitude", "" + latitude);
-							picEl.setAttribute("locationDisplay",
-								getPositionString(latitude, "N", "S") + " "
-								+ getPositionString(longitude, "E", "W"));
-						}
-					}
+					pic.markIndexPic();
+					indexPic = pic;
 				}
+				picList.add(pic);
 			}
-			catch(ImageReadException e)
+			setPics(picList);
+
+			// Version 2 files included the content; convert them
+			if(version == 2)
 			{
-				throw new InternalException("Picture '" + picFileName
-					+ "': error reading", e);
+				byte[] oldContent = getString(buffer, 48).getBytes(UTF8);
+				saveCache(cachedStory);
+				migrateContent(oldContent, cacheModified);
 			}
 		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new InternalException("Invalid cache file '" + cachedStory + "'", e);
+		}
+		return true;
+	}
 
-		// Set index pic to first one if none was specified
-		if(indexPic == null)
+	/**
+	 * Loads story from an old-format (version 1) XML cache file.
+	 * @param cachedStory Cache file
+	 * @return Content from the file
+	 * @throws InternalException Any processing error
+	 * @throws IOException Any I/O error
+	 */
+	private byte[] loadXmlCache(File cachedStory)
+		throws InternalException, IOException
+	{
+		Document cache = xml.parseFile(cachedStory);
+		Element root = cache.getDocumentElement();
+		this.title = root.getElementsByTagName("title").item(0).
+			getFirstChild().getNodeValue();
+		this.descriptionXml = xml.saveFragment(
+			(Element)root.getElementsByTagName("description").item(0));
+		byte[] oldContent = root.getElementsByTagName("content").item(0).
+			getFirstChild().getNodeValue().getBytes(UTF8);
+		this.date = Long.parseLong(root.getAttribute("date"));
+		NodeList picNodes = root.getElementsByTagName("pic");
+		List<Pic> picList = new ArrayList<Pic>(picNodes.getLength());
+		for(int i=0; i<picNodes.getLength(); i++)
 		{
-			Pic pic = picList.iterator().next();
-			pic.markIndexPic();
-			indexPic = pic;
+			Element picEl = (Element)picNodes.item(i);
+			Pic pic = new Pic(picEl);
+			picList.add(pic);
+			if(pic.isIndexPic())
+			{
+				indexPic = pic;
+			}
 		}
+		setPics(picList);
+		this.lastModified = Long.parseLong(root.getAttribute("lastModified"));
+		return oldContent;
+	}
 
-		// Build picture map
-		for(Pic pic : picList)
+	/**
+	 * Moves content from an old-format cache file into content.cache, where
+	 * {@link #getContent()} will find it.
+	 * @param oldContent Content
+	 * @param cacheModified Last modified date of the old cache file
+	 * @throws InternalException Error creating folder
+	 * @throws IOException Error writing file
+	 */
+	private void migrateContent(byte[] oldContent, long cacheModified)
+		throws InternalException, IOException
+	{
+		File cachedContent = new File(cacheFolder, "content.cache");
+		saveCacheFile(cachedContent, oldContent);
+
+		// Keep the date it was rendered, so it is rendered again if the story
+		// stylesheet is newer than that
+		cachedContent.setLastModified(cacheModified);
+	}
+
+	/**
+	 * Sets up the picture table.
+	 * @param picList All pictures in story
+	 */
+	private void setPics(List<Pic> picList)
+	{
+		pics = picList.toArray(new Pic[picList.size()]);
+		Arrays.sort(pics, PIC_ORDER);
+	}
+
+	/**
+	 * Saves story details to cache file (binary format, version 3).
+	 * <p>
+	 * The file begins with a fixed header: magic number, version,
+	 * lastModified, date, pic count, index pic number, then offset/length pairs
+	 * for the title and description (XML). The pic table follows, one
+	 * fixed-size entry per pic: offset/length of filename, 8-byte hash, size,
+	 * width, height. Then comes the UTF-8 text that these refer to, and finally
+	 * a CRC32 of everything before it.
+	 * <p>
+	 * (Version 2 was the same except that the header also had an offset/length
+	 * pair for the content.)
+	 * @param cachedStory Cache file
+	 * @throws InternalException Error creating folder
+	 * @throws IOException Error writing file
+	 */
+	private void saveCache(File cachedStory) throws InternalException, IOException
+	{
+		byte[] titleBytes = title.getBytes(UTF8),
+			descriptionBytes = descriptionXml.getBytes(UTF8);
+		byte[][] nameBytes = new byte[pics.length][];
+		int textSize = titleBytes.length + descriptionBytes.length;
+		int picNum = 0, indexPicNum = -1;
+		for(Pic pic : pics)
 		{
-			pics.put(pic.getFilename(), pic);
-		}
-
-		// Get XSL via the template mechanism
-		String xsl = mainServlet.getTemplates().get(
-			TemplateManager.Name.STORY_XSL).getString();
-		Document xslDocument = xml.parseString(
-			TemplateManager.Name.STORY_XSL.getFilename(),	xsl);
-		content = xml.transform(xslDocument, d).replace("%%STORYFINAL%%",
-			mainServlet.getStoryFinalXhtml());
-
-		// Get cache file
-		Document cache = xml.newDocument();
-		rootEl = cache.createElement("cache");
-		cache.appendChild(rootEl);
-		rootEl.setAttribute("date", date + "");
-		rootEl.setAttribute("lastModified", lastModified + "");
-
-		// Version not used now, intended if necessary later if cache format changes
-		rootEl.setAttribute("cacheVersion", "1");
-
-		Element titleEl = cache.createElement("title");
-		rootEl.appendChild(titleEl);
-		titleEl.appendChild(cache.createTextNode(title));
-		rootEl.appendChild(cache.importNode(description, true));
-		Element contentEl = cache.createElement("content");
-		rootEl.appendChild(contentEl);
-		contentEl.appendChild(cache.createTextNode(content));
-		for(Pic pic : picList)
+			if(pic == indexPic)
+			{
+				indexPicNum = picNum;
+			}
+			nameBytes[picNum] = pic.getFilename().getBytes(UTF8);
+			textSize += nameBytes[picNum].length;
+			picNum++;
+		}
+
+		int textStart = CACHE_HEADER_SIZE + pics.length * CACHE_PIC_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(textStart + textSize + 4);
+		buffer.putInt(CACHE_MAGIC);
+		buffer.putInt(CACHE_VERSION);
+		buffer.putLong(lastModified);
+		buffer.putLong(date);
+		buffer.putInt(pics.length);
+		buffer.putInt(indexPicNum);
+
+		buffer.position(textStart);
+		putString(buffer, 32, titleBytes);
+		putString(buffer, 40, descriptionBytes);
+		picNum = 0;
+		for(Pic pic : pics)
 		{
-			pic.add(rootEl);
+			int entry = CACHE_HEADER_SIZE + picNum * CACHE_PIC_SIZE;
+			putString(buffer, entry, nameBytes[picNum]);
+			int textPos = buffer.position();
+			buffer.position(entry + 8);
+			buffer.put(pic.getHash().getBytes(UTF8), 0, 8);
+			buffer.putInt(pic.getSize());
+			buffer.putInt(pic.getWidth());
+			buffer.putInt(pic.getHeight());
+			buffer.position(textPos);
+			picNum++;
 		}
-		String cacheString = xml.saveString(cache);
+		buffer.putInt(checksum(buffer, buffer.position()));
+
+		saveCacheFile(cachedStory, buffer.array());
+	}
+
+	/**
+	 * Saves the content to its cache file, content.cache, which just contains
+	 * the XHTML in UTF-8.
+	 * @throws InternalException Error creating folder
+	 * @throws IOException Error writing file
+	 */
+	private void saveContentCache() throws InternalException, IOException
+	{
+		saveCacheFile(new File(cacheFolder, "content.cache"), content);
+	}
 
-		// Save it
-		if(!cachedStory.getParentFile().exists())
+	/**
+	 * Saves a cache file via a temp file, so nobody sees a partial file.
+	 * @param file Target file
+	 * @param data Data to write
+	 * @throws InternalException Error creating folder
+	 * @throws IOException Error writing file
+	 */
+	static void saveCacheFile(File file, byte[] data)
+		throws InternalException, IOException
+	{
+		File folder = file.getParentFile();
+		if(!folder.exists())
 		{
-			if(!cachedStory.getParentFile().mkdir())
+			if(!folder.mkdir())
 			{
 				throw new InternalException("Unable to create cache folder '"
-					+ cachedStory.getParentFile() + "'");
+					+ folder + "'");
+			}
+		}
+		File temp = File.createTempFile("story", ".tmp", folder);
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			out.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+		if(!temp.renameTo(file))
+		{
+			// Some platforms won't rename over an existing file
+			file.delete();
+			if(!temp.renameTo(file))
+			{
+				temp.delete();
+				throw new InternalException("Unable to write cache file '"
+					+ file + "'");
 			}
 		}
-		FileOutputStream out = new FileOutputStream(cachedStory);
-		out.write(cacheString.getBytes(Charset.forName("UTF-8")));
-		out.close();
 	}
 
-	private static String getPositionString(
-		double position, String positive, String negative)
+	/**
+	 * Writes string bytes at the buffer's current position and records their
+	 * offset and length.
+	 * @param buffer Buffer
+	 * @param index Position at which to write offset and length
+	 * @param bytes String bytes
+	 */
+	private static void putString(ByteBuffer buffer, int index, byte[] bytes)
 	{
-		String letter = position >= 0 ? positive : negative;
-		double result = Math.abs(position);
-		int degrees = (int)Math.floor(result);
-		result -= degrees;
-		result *= 60;
-		int minutes = (int)Math.floor(result);
-		result -= minutes;
-		result *= 60;
-		int seconds = (int)Math.floor(result);
-		return degrees + "\u00b0" + minutes + "\u2032"
-			+ seconds + "\u2033" + letter;
+		buffer.putInt(index, buffer.position());
+		buffer.putInt(index + 4, bytes.length);
+		buffer.put(bytes);
 	}
 
 	/**
-	 * Marks this story as accessed so it won't expire from memory cache
+	 * @param buffer Buffer
+	 * @param index Position of offset and length
+	 * @return String read from that offset
 	 */
-	public void used()
+	private static String getString(ByteBuffer buffer, int index)
 	{
-		lastUsed = System.currentTimeMillis();
+		int offset = buffer.getInt(index), length = buffer.getInt(index + 4);
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + length);
+		slice.position(offset);
+		return UTF8.decode(slice).toString();
 	}
 
 	/**
-	 * @return Last time this story was accessed from cache
+	 * Calculates a checksum. The data is copied out in blocks because CRC32
+	 * only accepts a ByteBuffer from Java 8 on, and the build targets Java 7.
+	 * @param buffer Buffer
+	 * @param length Number of bytes from start of buffer to include
+	 * @return CRC32 of the data
 	 */
-	public long getLastUsed()
+	private static int checksum(ByteBuffer buffer, int length)
 	{
-		return lastUsed;
+		CRC32 crc = new CRC32();
+		byte[] block = new byte[4096];
+		ByteBuffer data = buffer.duplicate();
+		data.position(0);
+		while(length > 0)
+		{
+			int count = Math.min(length, block.length);
+			data.get(block, 0, count);
+			crc.update(block, 0, count);
+			length -= count;
+		}
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Obtains the result of a picture task, passing on any exception.
+	 * @param result Result from task
+	 * @return Picture metadata
+	 * @throws InternalException Any processing error (including interruption)
+	 * @throws IOException Any I/O error
+	 */
+	private static PicMetadata getResult(Future<PicMetadata> result)
+		throws InternalException, IOException
+	{
+		try
+		{
+			return result.get();
+		}
+		catch(InterruptedException e)
+		{
+			throw new InternalException(e);
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof InternalException)
+			{
+				throw (InternalException)cause;
+			}
+			if(cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			throw new InternalException(cause);
+		}
+	}
+
+	/**
+	 * Estimates the memory used by this story. This increases once the content
+	 * has been rendered.
+	 * @return Approximate size in bytes
+	 */
+	public int getMemorySize()
+	{
+		// Allow for object overheads as well as the characters in each string
+		int size = 256 + (title.length() + descriptionXml.length()) * 2;
+		for(Pic pic : pics)
+		{
+			size += 128 + (pic.getFilename().length() + pic.getHash().length()) * 2;
+		}
+		byte[] rendered = content;
+		if(rendered != null)
+		{
+			size += 16 + rendered.length;
+		}
+		for(RenderedPage page : pages.values())
+		{
+			size += 128 + page.getMemorySize();
+		}
+		return size;
 	}
 
 	/**
@@ -408,21 +765,80 @@ class Story
 	}
 
 	/**
-	 * @return Story description
+	 * @return Story description (XML for the description element)
 	 */
-	public Element getDescription()
+	public String getDescriptionXml()
 	{
-		return description;
+		return descriptionXml;
 	}
 
 	/**
-	 * @return Story content
+	 * Gets the story content, rendering it if it hasn't been rendered since
+	 * the story or the story stylesheet changed.
+	 * @return Story content as UTF-8 (do not modify)
+	 * @throws InternalException Any processing error
+	 * @throws IOException Any I/O error
 	 */
-	public String getContent()
+	public synchronized byte[] getContent()
+		throws InternalException, IOException
 	{
+		Template xsl = mainServlet.getTemplates().get(
+			TemplateManager.Name.STORY_XSL);
+		if(content == null || contentTemplate != xsl)
+		{
+			// The content cache is only any use the first time (afterwards, the
+			// stylesheet has changed since it was written)
+			File cachedContent = new File(cacheFolder, "content.cache");
+			if(content == null && !reload && cachedContent.lastModified()
+				>= Math.max(lastModified, xsl.getLastModified()))
+			{
+				content = Util.loadBytes(cachedContent);
+			}
+			else
+			{
+				// Parse the copy of the index file that the details came from (or
+				// the current one, for a cache saved before copies were kept), with
+				// the same picture details
+				File source = new File(cacheFolder, "source.cache");
+				if(!source.exists())
+				{
+					source = new File(storyFolder, "index.xml");
+				}
+				Document d = xml.parseFile(source);
+				addPicAttributes(d, false, null);
+
+				// Transform with XSL from the template mechanism
+				content = xml.transform(mainServlet.getTemplates(),
+					TemplateManager.Name.STORY_XSL, d).replace("%%STORYFINAL%%",
+					mainServlet.getStoryFinalXhtml()).getBytes(UTF8);
+				saveContentCache();
+			}
+			contentTemplate = xsl;
+		}
 		return content;
 	}
 
+	/**
+	 * @param key Content type and path to root
+	 * @param generation Current page generation
+	 * @return Page rendered earlier, or null if none or out of date
+	 */
+	public RenderedPage getPage(String key, long generation)
+	{
+		RenderedPage page = pages.get(key);
+		return page != null && page.isCurrent(generation) ? page : null;
+	}
+
+	/**
+	 * Keeps a rendered page for next time.
+	 * @param key Content type and path to root
+	 * @param page Page
+	 */
+	public void putPage(String key, RenderedPage page)
+	{
+		pages.put(key, page);
+	}
+
 	/**
 	 * @return Index pic for this file
 	 */
@@ -437,7 +853,25 @@ class Story
 	 */
 	public Pic getPic(String filename)
 	{
-		return pics.get(filename);
+		int low = 0, high = pics.length - 1;
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int compare = pics[mid].getFilename().compareTo(filename);
+			if(compare < 0)
+			{
+				low = mid + 1;
+			}
+			else if(compare > 0)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return pics[mid];
+			}
+		}
+		return null;
 	}
 
 	/**
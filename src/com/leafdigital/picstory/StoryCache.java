@@ -20,41 +20,152 @@ package com.leafdigital.picstory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Cache of recent stories.
+ * Cache of recent stories. This is thread-safe: cache hits don't lock, and
+ * each story is built by only one thread at a time, while requests for other
+ * stories carry on.
+ * <p>
+ * Stories are held in memory up to a budget based on their estimated size;
+ * the least recently used are dropped when it's exceeded (they're still
+ * cached on disk). Bulk loads, such as building the index, don't add stories
+ * to memory, so that they don't push out the popular ones.
+ * <p>
+ * Stories in memory are assumed to be up to date unless the change monitor
+ * has reported a change, so most requests don't touch the disk.
+ * <p>
+ * Optionally, when a story in memory has been modified, the old version
+ * carries on being served while the new one is built in the background.
  */
 public class StoryCache
 {
 	private final static Pattern REGEX_STORY = Pattern.compile(
 		MainServlet.REGEX_PART_LCNAME);
 
+	private MainServlet mainServlet;
+	private File cacheRoot, storyRoot;
+	private ConcurrentMap<String, Story> stories =
+		new ConcurrentHashMap<String, Story>();
+
 	/**
-	 * Number of stories to cache in RAM (they're still cached on disk otherwise)
+	 * Stories currently being built. Other requests for the same story wait
+	 * for the result. Every build, including bulk loads that won't be kept,
+	 * is removed from here as soon as it finishes.
 	 */
-	private final static int STORY_CACHE_SIZE = 10;
+	private ConcurrentMap<String, FutureTask<Story>> loading =
+		new ConcurrentHashMap<String, FutureTask<Story>>();
+
+	/**
+	 * Stories that might have changed on disk since they were loaded.
+	 */
+	private Set<String> changed =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Stories in least-recently-used order, with the size counted for each.
+	 * Only accessed with lruLock held. Hits that can't get the lock straight
+	 * away don't bother updating the order.
+	 */
+	private LinkedHashMap<String, Entry> lru =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * The same entries as lru, for looking them up without counting as use.
+	 * Only accessed with lruLock held.
+	 */
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private ReentrantLock lruLock = new ReentrantLock();
+
+	/**
+	 * Maximum memory size in bytes, and current total (within lruLock).
+	 */
+	private long maxSize, size;
+
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+		evictions = new AtomicLong();
 
-	private MainServlet mainServlet;
-	private File cacheRoot, storyRoot;
-	private Map<String, Story> stories = new HashMap<String, Story>();
 	private XmlProcessors xml;
+	private ExecutorService ingestPool, refreshPool;
+	private boolean serveStale;
+
+	/**
+	 * Story in the LRU list and the size it was counted as.
+	 */
+	private static class Entry
+	{
+		private Story story;
+		private int size;
+
+		Entry(Story story)
+		{
+			this.story = story;
+			this.size = story.getMemorySize();
+		}
+	}
 
 	/**
 	 * @param mainServlet Main servlet
 	 * @param cacheRoot Root folder for cache
 	 * @param storyRoot Root folder for stories
-	 * @throws InternalException Any problem creating standard XML stuff
+	 * @param maxSize Memory budget for stories in bytes
+	 * @param serveStale True to keep serving the previous version of a
+	 *   modified story until the new one has been built in the background
 	 */
-	public StoryCache(MainServlet mainServlet, File cacheRoot, File storyRoot)
-		throws InternalException
+	public StoryCache(MainServlet mainServlet, File cacheRoot, File storyRoot,
+		long maxSize, boolean serveStale)
 	{
+		this.maxSize = maxSize;
+		this.serveStale = serveStale;
 		this.mainServlet = mainServlet;
 		this.cacheRoot = cacheRoot;
 		this.storyRoot = storyRoot;
-		xml = new XmlProcessors();
+		xml = mainServlet.getXml();
+
+		// Pictures are read in parallel, one thread per core
+		ingestPool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new DaemonThreadFactory("picstory-ingest-"));
+
+		// Modified stories are rebuilt in the background one at a time
+		refreshPool = Executors.newSingleThreadExecutor(
+			new DaemonThreadFactory("picstory-refresh-"));
+	}
+
+	/**
+	 * Creates numbered daemon threads.
+	 */
+	static class DaemonThreadFactory implements ThreadFactory
+	{
+		private String prefix;
+		private int count;
+
+		DaemonThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, prefix + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Stops background threads. Call when the servlet is destroyed.
+	 */
+	public void close()
+	{
+		refreshPool.shutdownNow();
+		ingestPool.shutdownNow();
 	}
 
 	/**
@@ -66,6 +177,23 @@ public class StoryCache
 	 */
 	public Story getStory(String storyName, boolean reload)
 		throws UserException, IOException
+	{
+		return getStory(storyName, reload, true);
+	}
+
+	/**
+	 * @param storyName Story name
+	 * @param reload If true, reloads story
+	 * @param admit True if the story should be kept in memory; false for bulk
+	 *   loads, which use a story in memory if there is one but otherwise only
+	 *   load it (or build it, updating the disk cache) for the caller. A story
+	 *   already in memory is always replaced when it's rebuilt
+	 * @return Story
+	 * @throws UserException If file not found or some other problem
+	 * @throws IOException General error
+	 */
+	public Story getStory(String storyName, boolean reload, boolean admit)
+		throws UserException, IOException
 	{
 		// Check story exists
 		if(!REGEX_STORY.matcher(storyName).matches())
@@ -73,6 +201,15 @@ public class StoryCache
 			throw new UserException(HttpServletResponse.SC_NOT_FOUND,
 				"Story '" + Util.esc(storyName) + "' not found (illegal characters)");
 		}
+		// Use story from memory without checking the file if nothing has changed
+		Story story = stories.get(storyName);
+		if(story != null && !reload && !changed.contains(storyName))
+		{
+			return hit(storyName, story, admit);
+		}
+
+		// Check the file; if it hasn't been reloaded yet, keep checking
+		changed.remove(storyName);
 		File storyFolder = new File(storyRoot, storyName);
 		File storyIndex = new File(storyFolder, "index.xml");
 		long lastModified = storyIndex.lastModified();
@@ -81,35 +218,375 @@ public class StoryCache
 			throw new UserException(HttpServletResponse.SC_NOT_FOUND,
 				"Story '" + Util.esc(storyName) + "' not found");
 		}
+		if(story != null && story.getLastModified() < lastModified)
+		{
+			changed.add(storyName);
+		}
+
+		// Use cached story unless it's out of date or not cached or debug mode
+		if(serveStale && story != null && !reload
+			&& story.getLastModified() < lastModified)
+		{
+			refresh(storyName, lastModified);
+		}
+		else if(story == null || reload || story.getLastModified() < lastModified)
+		{
+			if(admit)
+			{
+				misses.incrementAndGet();
+			}
+			return load(storyName, lastModified, reload, admit);
+		}
+		return hit(storyName, story, admit);
+	}
 
-		// Load story from cache unless it's out of date or not cached or debug mode
-		Story story;
-		synchronized(this)
+	/**
+	 * Handles a request that uses a story already in memory.
+	 * @param storyName Story name
+	 * @param story Story
+	 * @param admit False for bulk loads
+	 * @return Story
+	 */
+	private Story hit(String storyName, Story story, boolean admit)
+	{
+		if(!admit)
 		{
-			story = stories.get(storyName);
-			if(story == null || reload || story.getLastModified() < lastModified)
+			// Bulk loads don't count as use
+			return story;
+		}
+		hits.incrementAndGet();
+		if(lruLock.tryLock())
+		{
+			try
+			{
+				Entry entry = lru.get(storyName);
+				if(entry != null && entry.story == story)
+				{
+					// Size goes up once the content is rendered
+					int newSize = story.getMemorySize();
+					size += newSize - entry.size;
+					entry.size = newSize;
+					evict();
+				}
+			}
+			finally
 			{
-				story = new Story(mainServlet, xml, cacheRoot, storyRoot, storyName,
-					lastModified, reload);
-				stories.put(storyName, story);
+				lruLock.unlock();
 			}
-			story.used();
-			while(stories.size() > STORY_CACHE_SIZE)
+		}
+		return story;
+	}
+
+	/**
+	 * Called by the change monitor when a story might have changed.
+	 * @param storyName Story name, or null for all stories
+	 */
+	public void changed(String storyName)
+	{
+		if(storyName == null)
+		{
+			changed.addAll(stories.keySet());
+		}
+		else
+		{
+			changed.add(storyName);
+
+			// If serving the old version meanwhile, start rebuilding straight away
+			// rather than waiting for a request
+			Story story = stories.get(storyName);
+			if(serveStale && story != null)
 			{
-				long minUsed = Long.MAX_VALUE;
-				String remove = null;
-				for(Map.Entry<String, Story> entry : stories.entrySet())
+				long lastModified = new File(new File(storyRoot, storyName),
+					"index.xml").lastModified();
+				if(lastModified != 0L && story.getLastModified() < lastModified)
 				{
-					long lastUsed = entry.getValue().getLastUsed();
-					if(lastUsed < minUsed)
+					refresh(storyName, lastModified);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a story, or waits for the result if another thread is already
+	 * building it.
+	 * @param storyName Story name
+	 * @param lastModified Last modified date of index.xml
+	 * @param reload If true, reloads story
+	 * @param admit True to add the story to memory
+	 * @return Story
+	 * @throws UserException If file not found or some other problem
+	 * @throws IOException General error
+	 */
+	private Story load(String storyName, long lastModified, boolean reload,
+		boolean admit) throws UserException, IOException
+	{
+		FutureTask<Story> task = newTask(storyName, lastModified, reload, admit,
+			false);
+		FutureTask<Story> existing = loading.putIfAbsent(storyName, task);
+		if(existing != null)
+		{
+			// The other build might have been a bulk load
+			Story story = getResult(existing);
+			if(admit)
+			{
+				add(storyName, story, true);
+			}
+			return story;
+		}
+		try
+		{
+			task.run();
+			return getResult(task);
+		}
+		finally
+		{
+			loading.remove(storyName, task);
+		}
+	}
+
+	/**
+	 * Starts rebuilding a modified story in the background, unless it's already
+	 * being built. If this fails, the old version is dropped so that the next
+	 * request builds it again (and reports the error).
+	 * @param storyName Story name
+	 * @param lastModified Last modified date of index.xml
+	 */
+	private void refresh(final String storyName, long lastModified)
+	{
+		final FutureTask<Story> task = newTask(storyName, lastModified, false,
+			false, true);
+		if(loading.putIfAbsent(storyName, task) != null)
+		{
+			return;
+		}
+		try
+		{
+			refreshPool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						task.run();
+						getResult(task);
+					}
+					catch(Exception e)
+					{
+						remove(storyName);
+					}
+					finally
 					{
-						minUsed = lastUsed;
-						remove = entry.getKey();
+						loading.remove(storyName, task);
 					}
 				}
-				stories.remove(remove);
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			// Shutting down
+			loading.remove(storyName, task);
+		}
+	}
+
+	/**
+	 * @param storyName Story name
+	 * @param lastModified Last modified date of index.xml
+	 * @param reload If true, reloads story
+	 * @param admit True to add the story to memory
+	 * @param render True to render the content too, so that it's ready when
+	 *   the story replaces the old version
+	 * @return Task that builds the story
+	 */
+	private FutureTask<Story> newTask(final String storyName,
+		final long lastModified, final boolean reload, final boolean admit,
+		final boolean render)
+	{
+		return new FutureTask<Story>(new Callable<Story>()
+		{
+			@Override
+			public Story call() throws Exception
+			{
+				Story story = new Story(mainServlet, xml, ingestPool, cacheRoot,
+					storyRoot, storyName, lastModified, reload);
+				if(render)
+				{
+					story.getContent();
+				}
+				if(admit || stories.containsKey(storyName))
+				{
+					add(storyName, story, admit);
+				}
+				return story;
+			}
+		});
+	}
+
+	/**
+	 * Removes a story from memory.
+	 * @param storyName Story name
+	 */
+	private void remove(String storyName)
+	{
+		lruLock.lock();
+		try
+		{
+			Entry old = lru.remove(storyName);
+			entries.remove(storyName);
+			if(old != null)
+			{
+				size -= old.size;
 			}
+			stories.remove(storyName);
+		}
+		finally
+		{
+			lruLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a story to the cache, replacing any previous version (unless it's
+	 * already there or a newer version is).
+	 * @param storyName Story name
+	 * @param story Story
+	 * @param use True if this counts as use of the story; false (when a bulk
+	 *   load or background refresh replaces a story in memory) to leave its
+	 *   place in the LRU order alone
+	 */
+	private void add(String storyName, Story story, boolean use)
+	{
+		lruLock.lock();
+		try
+		{
+			Entry old = entries.get(storyName);
+			if(old != null)
+			{
+				if(old.story == story
+					|| old.story.getLastModified() > story.getLastModified())
+				{
+					return;
+				}
+				size -= old.size;
+				if(!use)
+				{
+					old.story = story;
+					old.size = story.getMemorySize();
+					size += old.size;
+					stories.put(storyName, story);
+					evict();
+					return;
+				}
+			}
+			Entry entry = new Entry(story);
+			lru.put(storyName, entry);
+			entries.put(storyName, entry);
+			size += entry.size;
+			stories.put(storyName, story);
+			evict();
+		}
+		finally
+		{
+			lruLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes least recently used stories while over budget. (The most recent
+	 * one is always kept even if it's too big.) Call with lruLock held.
+	 */
+	private void evict()
+	{
+		Iterator<Map.Entry<String, Entry>> i = lru.entrySet().iterator();
+		while(size > maxSize && lru.size() > 1)
+		{
+			Map.Entry<String, Entry> eldest = i.next();
+			i.remove();
+			entries.remove(eldest.getKey());
+			size -= eldest.getValue().size;
+			stories.remove(eldest.getKey(), eldest.getValue().story);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Number of requests that found an up-to-date story in memory
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of requests that had to load or build a story
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of stories dropped from memory to stay within budget
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return Estimated memory used by stories, in bytes
+	 */
+	public long getMemorySize()
+	{
+		lruLock.lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lruLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of stories in memory
+	 */
+	public int getStoryCount()
+	{
+		return stories.size();
+	}
+
+	/**
+	 * Obtains the result of a story build, passing on any exception.
+	 * @param task Build task
+	 * @return Story
+	 * @throws UserException Any processing error (including interruption)
+	 * @throws IOException Any I/O error
+	 */
+	private static Story getResult(FutureTask<Story> task)
+		throws UserException, IOException
+	{
+		try
+		{
+			return task.get();
+		}
+		catch(InterruptedException e)
+		{
+			throw new InternalException(e);
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof UserException)
+			{
+				throw (UserException)cause;
+			}
+			if(cause instanceof IOException)
+			{
+				throw (IOException)cause;
+			}
+			throw new InternalException(cause);
 		}
-		return story;
 	}
 }
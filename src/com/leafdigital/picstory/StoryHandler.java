@@ -22,7 +22,7 @@ import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.*;
 
 import javax.imageio.*;
 import javax.imageio.stream.FileImageOutputStream;
@@ -34,12 +34,44 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class StoryHandler extends RequestHandler
 {
-	private final static int BUFFER_SIZE = 64 * 1024;
-
 	private File cacheRoot, storyRoot;
 
 	private Semaphore resizeSemaphore;
 
+	/**
+	 * Routing table for pictures: for each story, a map from the last part of
+	 * the URL (name.hash.size.jpg) to a resized file that's ready to send.
+	 * A story's map is dropped when the story changes.
+	 */
+	private ConcurrentMap<String, ConcurrentMap<String, Variant>> routes =
+		new ConcurrentHashMap<String, ConcurrentMap<String, Variant>>();
+
+	/**
+	 * Increases (before routes are dropped) whenever a story changes, so that
+	 * requests that loaded a story before the change don't add routes for it.
+	 */
+	private volatile long routesGeneration;
+
+	/**
+	 * Popular resized pictures held in memory (optional).
+	 */
+	private VariantCache variants;
+
+	/**
+	 * Resized picture file in the cache folder.
+	 */
+	private static class Variant
+	{
+		private File file;
+		private int length;
+
+		Variant(File file, int length)
+		{
+			this.file = file;
+			this.length = length;
+		}
+	}
+
 	private static enum Size
 	{
 		W800(800),
@@ -71,16 +103,27 @@ public class StoryHandler extends RequestHandler
 	 * @param cacheRoot Root folder for cache
 	 * @param storyRoot Root folder for stories
 	 * @param resizeThreads Max number of simultaneous image resizes
+	 * @param variantCacheSize Memory for popular resized pictures in bytes
+	 *   (0 = none)
 	 * @throws ServletException Any error constructing standard objects
 	 */
 	public StoryHandler(MainServlet mainServlet, File cacheRoot, File storyRoot,
-		int resizeThreads)
+		int resizeThreads, long variantCacheSize)
 		throws ServletException
 	{
 		super(mainServlet);
 		this.cacheRoot = cacheRoot;
 		this.storyRoot = storyRoot;
 		resizeSemaphore = new Semaphore(resizeThreads);
+		variants = new VariantCache(variantCacheSize);
+	}
+
+	/**
+	 * @return Memory cache of popular resized pictures
+	 */
+	VariantCache getVariantCache()
+	{
+		return variants;
 	}
 
 	/**
@@ -95,8 +138,18 @@ public class StoryHandler extends RequestHandler
 		Story story = getMainServlet().getStories().getStory(
 			storyName, r.isReload());
 
-		// Output story
-		getMainServlet().sendPage(r, "story", story.getTitle(), story.getContent());
+		// Output story, rendering the page only if it's changed (HEAD renders
+		// too, so that the ETag and length match GET)
+		String key = r.getXhtmlMimeType() + " " + r.getPathToRoot();
+		RenderedPage page = story.getPage(key,
+			getMainServlet().getPageGeneration());
+		if(page == null || r.isReload())
+		{
+			page = getMainServlet().renderPage(r, "story", story.getTitle(),
+				story.getContent());
+			story.putPage(key, page);
+		}
+		r.outputPage(page);
 	}
 
 	/**
@@ -190,13 +243,9 @@ public class StoryHandler extends RequestHandler
 	public void getPic(Request r, String storyName, String picName, String hash,
 		String sizeString) throws IOException, UserException
 	{
-		// Handle if-modified-since (it never is, because of the hash)
-		if(r.handleIfModifiedSince())
-		{
-			return;
-		}
-
-		// Get story and pic
+		// Get story and pic (noting the generation first, in case the story
+		// changes meanwhile)
+		long generation = routesGeneration;
 		Story story = getMainServlet().getStories().getStory(
 			storyName, r.isReload());
 		Pic pic = story.getPic(picName);
@@ -225,33 +274,174 @@ public class StoryHandler extends RequestHandler
 				"Size '" + sizeString + "' not available");
 		}
 
-		// OK, all valid, so let's send it
-		r.preventExpiry();
-		byte[] buffer = new byte[BUFFER_SIZE];
+		// Handle conditional requests (it's never modified, because of the hash)
+		if(r.handleConditional(picName + "." + hash + "." + sizeString, true))
+		{
+			return;
+		}
+
+		// OK, all valid, so let's send it (HEAD resizes too, so that it can give
+		// the length; the file is then ready for the GET that usually follows)
 		File picFile = getPicFile(storyName, pic, size);
-		OutputStream out = r.outputBinaryHeaders(
-			HttpServletResponse.SC_OK, "image/jpeg", (int)picFile.length());
-		FileInputStream in = new FileInputStream(picFile);
-		while(true)
+		Variant variant = new Variant(picFile, (int)picFile.length());
+		r.preventExpiry();
+		r.outputFile(HttpServletResponse.SC_OK, "image/jpeg", picFile,
+			variant.length);
+
+		// Next time, go straight to the file
+		addRoute(storyName, picName + "." + hash + "." + sizeString + ".jpg",
+			variant, generation);
+	}
+
+	/**
+	 * Sends a picture directly from the routing table, if it's there. This
+	 * doesn't need to load the story or check any files.
+	 * @param r Request
+	 * @param path Request path
+	 * @return True if the picture was sent, false if the request should be
+	 *   handled normally
+	 * @throws IOException Any error
+	 */
+	public boolean getRoutedPic(Request r, String path) throws IOException
+	{
+		if(r.isReload())
+		{
+			return false;
+		}
+		int slash = path.indexOf('/', 1);
+		if(slash == -1)
+		{
+			return false;
+		}
+		String storyName = path.substring(1, slash);
+		Map<String, Variant> table = routes.get(storyName);
+		if(table == null)
+		{
+			return false;
+		}
+		Variant variant = table.get(path.substring(slash + 1));
+		if(variant == null)
+		{
+			return false;
+		}
+
+		// Popular pictures might be in memory; otherwise make sure the file is
+		// still there before answering anything
+		String key = path.substring(1);
+		byte[] data = variants.isEnabled() ? variants.get(key) : null;
+		if(data == null && !variant.file.exists())
+		{
+			// Somebody deleted the cache file; forget this story's routes
+			routes.remove(storyName, table);
+			return false;
+		}
+
+		// Handle conditional requests (it's never modified, because of the hash)
+		if(r.handleConditional(path.substring(slash + 1, path.length() - 4), true))
+		{
+			return true;
+		}
+
+		if(data != null)
+		{
+			r.preventExpiry();
+			r.outputBinary(HttpServletResponse.SC_OK, "image/jpeg", data);
+			return true;
+		}
+
+		r.preventExpiry();
+		try
+		{
+			r.outputFile(HttpServletResponse.SC_OK, "image/jpeg", variant.file,
+				variant.length);
+		}
+		catch(FileNotFoundException e)
+		{
+			// Somebody deleted the cache file; forget this story's routes
+			routes.remove(storyName, table);
+			return false;
+		}
+		if(variants.isEnabled())
 		{
-			int read = in.read(buffer);
-			if(read <= 0)
+			variants.offer(key, variant.file, variant.length);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a picture to the routing table, unless a story has changed since
+	 * the request loaded its story.
+	 * @param storyName Story name
+	 * @param key Last part of URL
+	 * @param variant File details
+	 * @param generation Value of routesGeneration before loading the story
+	 */
+	private void addRoute(String storyName, String key, Variant variant,
+		long generation)
+	{
+		if(routesGeneration != generation)
+		{
+			return;
+		}
+		ConcurrentMap<String, Variant> table = routes.get(storyName);
+		if(table == null)
+		{
+			ConcurrentMap<String, Variant> newTable =
+				new ConcurrentHashMap<String, Variant>();
+			table = routes.putIfAbsent(storyName, newTable);
+			if(table == null)
 			{
-				break;
+				table = newTable;
 			}
-			out.write(buffer, 0, read);
 		}
-		in.close();
-		out.close();
+		table.put(key, variant);
+
+		// If a change happened meanwhile, it might not have seen this route
+		if(routesGeneration != generation)
+		{
+			table.remove(key, variant);
+		}
+	}
+
+	/**
+	 * Called by the change monitor when a story might have changed, so that
+	 * its pictures are checked again.
+	 * @param storyName Story name, or null for all stories
+	 */
+	public void changed(String storyName)
+	{
+		synchronized(this)
+		{
+			routesGeneration++;
+		}
+		if(storyName == null)
+		{
+			routes.clear();
+		}
+		else
+		{
+			routes.remove(storyName);
+		}
+	}
+
+	/**
+	 * @param storyName Story name
+	 * @param pic Picture
+	 * @param size Size
+	 * @return Location of resized file in cache folder (might not exist yet)
+	 */
+	private File getPicCacheFile(String storyName, Pic pic, Size size)
+	{
+		return new File(new File(cacheRoot, storyName),
+			pic.getFilename() + "." + pic.getHash() + "."
+			+ size.toString().toLowerCase() + ".jpg");
 	}
 
 	private File getPicFile(String storyName, Pic pic, Size size)
 		throws InternalException
 	{
 		// Look for file in cache folder
-		File cache = new File(new File(cacheRoot, storyName),
-			pic.getFilename() + "." + pic.getHash() + "."
-			+ size.toString().toLowerCase() + ".jpg");
+		File cache = getPicCacheFile(storyName, pic, size);
 		synchronized(pic)
 		{
 			if(!cache.exists())
@@ -18,38 +18,101 @@ Copyright 2010 Samuel Marshall.
 */
 package com.leafdigital.picstory;
 
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
  * Represents a template file loaded from disk.
+ * <p>
+ * The first time it's used, the template is compiled into a list of
+ * segments: literal text (already encoded as UTF-8), fields, and the path
+ * to root. Resource URLs (%%R:file.css%%) and inline resources
+ * (%%I:file.css%%, replaced by the content of the file) are worked out at
+ * that point, so the template is compiled again if the resources change.
  */
 public class Template
 {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Part of a compiled template.
+	 */
+	private static class Segment
+	{
+		/**
+		 * Literal text, or null if this is a field or the path to root.
+		 */
+		private String text;
+
+		/**
+		 * Literal text in UTF-8.
+		 */
+		private byte[] bytes;
+
+		/**
+		 * Field name, or null if this is literal text or the path to root.
+		 */
+		private String field;
+
+		/**
+		 * @param text Literal text (null if not text)
+		 * @param field Field name (null if not a field)
+		 */
+		Segment(String text, String field)
+		{
+			this.text = text;
+			this.field = field;
+			if(text != null)
+			{
+				bytes = text.getBytes(UTF8);
+			}
+		}
+	}
+
+	/**
+	 * Compiled segments and the resource generation they were compiled for.
+	 */
+	private static class Compiled
+	{
+		private Segment[] segments;
+		private int resourceGeneration;
+
+		Compiled(Segment[] segments, int resourceGeneration)
+		{
+			this.segments = segments;
+			this.resourceGeneration = resourceGeneration;
+		}
+	}
+
 	private String content;
+	private long lastModified;
 	private ResourceHandler resources;
+	private volatile Compiled compiled;
 
 	/**
 	 * @param content Content of template
+	 * @param lastModified Last modified date of template file
 	 * @param resources Resource handler
 	 */
-	Template(String content, ResourceHandler resources)
+	Template(String content, long lastModified, ResourceHandler resources)
 	{
 		this.content = content;
+		this.lastModified = lastModified;
 		this.resources = resources;
 	}
 
 	/**
-	 * Gets the string version of this template.
+	 * Gets this template as a single UTF-8 array.
 	 * @param pathToRoot Path to root e.g. "../"
 	 * @param fields Input fields
 	 * @param values Value of corresponding fields
-	 * @return Value as string
+	 * @return Value as UTF-8
 	 * @throws IllegalArgumentException If there's a missing field (note: you
 	 *   are allowed to specify fields that don't exist)
 	 * @throws InternalException Unexpected error
 	 * @throws IllegalStateException If content text is invalid
 	 */
-	public String getString(String pathToRoot, String[] fields, String[] values)
+	public byte[] getBytes(String pathToRoot, String[] fields, String[] values)
 		throws IllegalArgumentException, IllegalStateException, InternalException
 	{
 		// Check parameters
@@ -59,38 +122,113 @@ public class Template
 		}
 
 		// Build map
-		Map<String, String> fieldValues = new HashMap<String, String>();
+		Map<String, byte[]> fieldValues = new HashMap<String, byte[]>();
 		for(int i=0; i<fields.length; i++)
 		{
-			fieldValues.put(fields[i], values[i]);
+			fieldValues.put(fields[i], values[i].getBytes(UTF8));
 		}
-		return getString(pathToRoot, fieldValues);
+		return Util.join(getParts(pathToRoot, fieldValues));
 	}
 
 	/**
-	 * Gets the string version of this template.
+	 * Gets this template as a list of UTF-8 byte arrays, without copying the
+	 * text or field values. The result can be sent one array at a time (the
+	 * total length is known in advance) or joined with
+	 * {@link Util#join(byte[][])}.
 	 * @param pathToRoot Path to root e.g. "../"
-	 * @param fields Input fields
-	 * @return Value as string
+	 * @param fields Input fields (UTF-8)
+	 * @return Parts of the page in order
 	 * @throws IllegalArgumentException If there's a missing field (note: you
 	 *   are allowed to specify fields that don't exist)
 	 * @throws IllegalStateException If content text is invalid
 	 * @throws InternalException Unexpected error
 	 */
-	public String getString(String pathToRoot, Map<String, String> fields)
+	public byte[][] getParts(String pathToRoot, Map<String, byte[]> fields)
 		throws IllegalArgumentException, IllegalStateException, InternalException
 	{
+		Segment[] segments = getCompiled().segments;
+		byte[] root = pathToRoot.getBytes(UTF8);
+		byte[][] parts = new byte[segments.length][];
+		for(int i=0; i<segments.length; i++)
+		{
+			Segment segment = segments[i];
+			if(segment.bytes != null)
+			{
+				parts[i] = segment.bytes;
+			}
+			else if(segment.field == null)
+			{
+				parts[i] = root;
+			}
+			else
+			{
+				parts[i] = fields.get(segment.field);
+				if(parts[i] == null)
+				{
+					throw new IllegalArgumentException("Missing field: '"
+						+ segment.field + "'");
+				}
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * Gets the string version assuming there are no fields.
+	 * @return Content
+	 */
+	public String getString()
+	{
+		return content;
+	}
+
+	/**
+	 * @return Last modified date of the template file when it was loaded
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return Compiled template for the current resources
+	 * @throws IllegalStateException If content text is invalid
+	 * @throws InternalException Unexpected error
+	 */
+	private Compiled getCompiled()
+		throws IllegalStateException, InternalException
+	{
+		Compiled current = compiled;
+		int resourceGeneration = resources.getGeneration();
+		if(current == null || current.resourceGeneration != resourceGeneration)
+		{
+			// If two threads get here, they both compile it; that's fine
+			current = new Compiled(compile(), resourceGeneration);
+			compiled = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Splits the template into segments at its %% markers.
+	 * @return Segments
+	 * @throws IllegalStateException If content text is invalid
+	 * @throws InternalException Unexpected error
+	 */
+	private Segment[] compile() throws IllegalStateException, InternalException
+	{
+		List<Segment> segments = new ArrayList<Segment>();
+		StringBuilder text = new StringBuilder();
 		int pos = 0;
-		StringBuilder out = new StringBuilder();
 		while(true)
 		{
 			int nextMarker = content.indexOf("%%", pos);
 			if(nextMarker == -1)
 			{
-				out.append(content.substring(pos));
-				return out.toString();
+				text.append(content, pos, content.length());
+				break;
 			}
-			out.append(content.substring(pos, nextMarker));
+			text.append(content, pos, nextMarker);
 			int pair = content.indexOf("%%", nextMarker + 2);
 			if(pair == -1)
 			{
@@ -116,26 +254,43 @@ public class Template
 					throw new IllegalStateException(
 						"Template has unknown resource filename");
 				}
-				out.append(pathToRoot + "R/" + base + "." + hash + extension);
+				addText(segments, text);
+				segments.add(new Segment(null, null));
+				text.append("R/" + base + "." + hash + extension);
 			}
-			else
+			else if(marker.startsWith("I:"))
 			{
-				String replace = fields.get(marker);
-				if(replace == null)
+				try
 				{
-					throw new IllegalArgumentException("Missing field: '" + marker + "'");
+					text.append(resources.getText(marker.substring(2)));
+				}
+				catch(IllegalArgumentException e)
+				{
+					throw new IllegalStateException(
+						"Template has invalid inline resource: " + e.getMessage());
 				}
-				out.append(replace);
+			}
+			else
+			{
+				addText(segments, text);
+				segments.add(new Segment(null, marker));
 			}
 		}
+		addText(segments, text);
+		return segments.toArray(new Segment[segments.size()]);
 	}
 
 	/**
-	 * Gets the string version assuming there are no fields.
-	 * @return Content
+	 * Adds any pending literal text as a segment.
+	 * @param segments Segment list
+	 * @param text Pending text (cleared)
 	 */
-	public String getString()
+	private static void addText(List<Segment> segments, StringBuilder text)
 	{
-		return content;
+		if(text.length() > 0)
+		{
+			segments.add(new Segment(text.toString(), null));
+			text.setLength(0);
+		}
 	}
 }
@@ -23,6 +23,10 @@ import java.util.*;
 
 /**
  * Retrieves templates from disk or (usually) memory cache.
+ * <p>
+ * Loaded templates are held in an immutable map, which requests read
+ * without locking. When a template is loaded or changes, a new map is
+ * built and swapped in.
  */
 public class TemplateManager
 {
@@ -67,7 +71,29 @@ public class TemplateManager
 
 	private File templateFolder;
 	private ResourceHandler resources;
-	private Map<Name, Template> templates = new HashMap<Name, Template>();
+
+	/**
+	 * Current templates. Never modified; replaced (with lock held) instead.
+	 */
+	private volatile Map<Name, Template> templates =
+		new EnumMap<Name, Template>(Name.class);
+
+	/**
+	 * Held while replacing the templates map.
+	 */
+	private final Object swapLock = new Object();
+
+	/**
+	 * Increases whenever templates are reloaded.
+	 */
+	private volatile int generation;
+
+	/**
+	 * Time of last full reload, or 0 if none. Templates loaded since then
+	 * count as modified at that time, so anything cached on disk from them
+	 * is out of date.
+	 */
+	private volatile long reloaded;
 
 	/**
 	 * @param templateFolder Folder that contains all templates
@@ -86,7 +112,7 @@ public class TemplateManager
 	 * @throws NullPointerException If you specify null for any parameter
 	 * @throws IOException If it can't load the template for some reason
 	 */
-	public synchronized Template get(Name name)
+	public Template get(Name name)
 		throws NullPointerException, IOException
 	{
 		if(name == null)
@@ -94,22 +120,78 @@ public class TemplateManager
 			throw new NullPointerException();
 		}
 
-		// Load template from disk if necessary
-		if(!templates.containsKey(name))
+		Template template = templates.get(name);
+		if(template != null)
+		{
+			return template;
+		}
+
+		// Load template from disk
+		int loadGeneration = generation;
+		File f = new File(templateFolder, name.getFilename());
+		long lastModified = Math.max(f.lastModified(), reloaded);
+		String text = Util.loadString(new FileInputStream(f));
+		template = new Template(text, lastModified, resources);
+
+		synchronized(swapLock)
 		{
-			File f = new File(templateFolder, name.getFilename());
-			String text = Util.loadString(new FileInputStream(f));
-			templates.put(name, new Template(text, resources));
+			// Another thread might have loaded it already
+			Template existing = templates.get(name);
+			if(existing != null)
+			{
+				return existing;
+			}
+
+			// Don't keep it if templates changed while it was loading
+			if(generation == loadGeneration)
+			{
+				Map<Name, Template> newTemplates =
+					new EnumMap<Name, Template>(templates);
+				newTemplates.put(name, template);
+				templates = newTemplates;
+			}
 		}
+		return template;
+	}
 
-		return templates.get(name);
+	/**
+	 * Called by the change monitor when a template file changes, so that it
+	 * will be loaded again next time.
+	 * @param filename Filename, or null if any template might have changed
+	 */
+	public void changed(String filename)
+	{
+		synchronized(swapLock)
+		{
+			Map<Name, Template> newTemplates =
+				new EnumMap<Name, Template>(templates);
+			for(Name name : Name.values())
+			{
+				if(filename == null || name.getFilename().equals(filename))
+				{
+					newTemplates.remove(name);
+				}
+			}
+			generation++;
+			templates = newTemplates;
+		}
 	}
 
 	/**
 	 * Reloads all templates.
 	 */
-	public synchronized void reload()
+	public void reload()
+	{
+		reloaded = System.currentTimeMillis();
+		changed(null);
+	}
+
+	/**
+	 * @return Number that changes whenever templates are reloaded (anything
+	 *   derived from them might need to be rebuilt)
+	 */
+	public int getGeneration()
 	{
-		templates.clear();
+		return generation;
 	}
 }
@@ -59,24 +59,25 @@ public class UserException extends Exception
 	public void display(Request r, MainServlet main)
 		throws NullPointerException, IOException, InternalException
 	{
-		main.sendPage(r, status, "error", "Error", getErrorXhtml(r, main));
+		main.sendPage(r, status, "error", "Error",
+			getErrorXhtml(r.getPathToRoot(), main));
 	}
 
 	/**
-	 * @param r Request
+	 * @param pathToRoot Path to root of page that will contain the error
 	 * @param main Main servlet
-	 * @return Error page (content only, not outer frame) as XHTML
+	 * @return Error page (content only, not outer frame) as XHTML in UTF-8
 	 * @throws IOException Any error building page
 	 * @throws InternalException Any other error building page
 	 */
-	public String getErrorXhtml(Request r, MainServlet main) throws IOException,
-		InternalException
+	public byte[] getErrorXhtml(String pathToRoot, MainServlet main)
+		throws IOException, InternalException
 	{
 		// Use templates to build page
 		TemplateManager templates = main.getTemplates();
 		Template errorTemplate = templates.get(TemplateManager.Name.ERROR);
-		String error = errorTemplate.getString(
-			r.getPathToRoot(),
+		byte[] error = errorTemplate.getBytes(
+			pathToRoot,
 			new String[] { "ERROR", "TRACE" },
 			new String[] { Util.esc(getMessage()), Util.esc(getTrace(this)) });
 		return error;
@@ -19,7 +19,8 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.picstory;
 
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.*;
 
 /**
@@ -29,6 +30,8 @@ public abstract class Util
 {
 	private final static int BUFFERSIZE=65536;
 
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
 	/**
 	 * Loads all the bytes from an inputstream, then closes it.
 	 * @param is Stream
@@ -66,6 +69,40 @@ public abstract class Util
 		}
 	}
 
+	/**
+	 * Loads all the bytes from a file. This reads directly into an array of the
+	 * right size.
+	 * @param file File
+	 * @return Bytes
+	 * @throws IOException Any I/O error
+	 */
+	public static byte[] loadBytes(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+			{
+				throw new IOException("File too large: " + file);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int)size);
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer) == -1)
+				{
+					throw new EOFException("File changed while reading: " + file);
+				}
+			}
+			return buffer.array();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
 	/**
 	 * Loads a UTF-8 string from an input stream, then closes it.
 	 * @param is Stream to read
@@ -77,6 +114,28 @@ public abstract class Util
 		return new String(loadBytes(is),"UTF-8");
 	}
 
+	/**
+	 * Joins several byte arrays into one of exactly the right size.
+	 * @param parts Arrays to join
+	 * @return Joined array
+	 */
+	public static byte[] join(byte[][] parts)
+	{
+		int length = 0;
+		for(byte[] part : parts)
+		{
+			length += part.length;
+		}
+		byte[] result = new byte[length];
+		int pos = 0;
+		for(byte[] part : parts)
+		{
+			System.arraycopy(part, 0, result, pos, part.length);
+			pos += part.length;
+		}
+		return result;
+	}
+
 	/**
 	 * Escapes special characters in a string (angle brackets, ampersands, both
 	 * types of quote) so that it can be included in the text of an XML element
@@ -137,15 +196,49 @@ public abstract class Util
 	 */
 	public static String hash(byte[] hashDataBytes) throws NoSuchAlgorithmException
 	{
-		// Hash data and return 40-character string
-		MessageDigest m;
-		m = MessageDigest.getInstance("SHA-1");
+		MessageDigest m = MessageDigest.getInstance("SHA-1");
 		m.update(hashDataBytes, 0, hashDataBytes.length);
-		String sha1 = new BigInteger(1, m.digest()).toString(16);
-		while(sha1.length() < 40)
+		return toHex(m.digest());
+	}
+
+	/**
+	 * Hashes the rest of a file, reading it in blocks so that the whole file is
+	 * never held in memory. The channel is left at end of file, but not closed.
+	 * @param channel Channel to read
+	 * @return SHA-1 hash of data from current position to end of file
+	 * @throws NoSuchAlgorithmException If Java is missing the SHA-1 provider
+	 * @throws IOException Any I/O error
+	 */
+	public static String hash(FileChannel channel)
+		throws NoSuchAlgorithmException, IOException
+	{
+		MessageDigest m = MessageDigest.getInstance("SHA-1");
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFERSIZE);
+		while(true)
+		{
+			buffer.clear();
+			if(channel.read(buffer) == -1)
+			{
+				break;
+			}
+			buffer.flip();
+			m.update(buffer);
+		}
+		return toHex(m.digest());
+	}
+
+	/**
+	 * @param bytes Bytes
+	 * @return Lower-case hex string, two characters per byte
+	 */
+	static String toHex(byte[] bytes)
+	{
+		char[] out = new char[bytes.length * 2];
+		for(int i=0; i<bytes.length; i++)
 		{
-			sha1 = "0" + sha1;
+			out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			out[i * 2 + 1] = HEX[bytes[i] & 0xf];
 		}
-		return sha1;
+		return new String(out);
 	}
 }
@@ -0,0 +1,323 @@
+/*
+This file is part of leafdigital picstory.
+
+picstory is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+picstory is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with picstory.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.picstory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory cache of frequently-requested resized pictures, so that they can be
+ * sent without reading the file. The cache has a fixed size in bytes.
+ * <p>
+ * Pictures are only added once they have been requested a few times, and
+ * then only if they have been requested more often than the least recently
+ * used picture they would replace. (Request counts are halved every few
+ * thousand requests so that old popularity fades.) This keeps thumbnails that are requested
+ * all the time in memory, rather than whatever was requested last.
+ */
+class VariantCache
+{
+	/**
+	 * Number of requests before a picture is considered for the cache.
+	 */
+	private final static int MIN_FREQUENCY = 2;
+
+	/**
+	 * Number of requests between halving all the request counts. This also
+	 * limits the number of counts kept, because counts that reach zero are
+	 * removed.
+	 */
+	private final static int AGE_INTERVAL = 10000;
+
+	private long maxSize;
+
+	/**
+	 * Cached data. Can be read without locking.
+	 */
+	private ConcurrentMap<String, byte[]> data =
+		new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Keys in least-recently-used order, and total size. Only accessed with
+	 * lock held; hits don't update the order if they'd have to wait.
+	 */
+	private LinkedHashMap<String, Integer> lru =
+		new LinkedHashMap<String, Integer>(16, 0.75f, true);
+	private long size;
+	private ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Recent request counts for each picture (whether in the cache or not).
+	 */
+	private ConcurrentMap<String, AtomicInteger> counts =
+		new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Requests counted since counts were last halved.
+	 */
+	private AtomicInteger sinceAged = new AtomicInteger();
+
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+		evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize Maximum size in bytes (0 to disable)
+	 */
+	VariantCache(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return True if the cache is in use
+	 */
+	boolean isEnabled()
+	{
+		return maxSize > 0;
+	}
+
+	/**
+	 * Gets a picture from the cache and counts the request.
+	 * @param key Key (path of picture URL)
+	 * @return Data or null if not cached
+	 */
+	byte[] get(String key)
+	{
+		AtomicInteger count = counts.get(key);
+		if(count == null)
+		{
+			count = new AtomicInteger();
+			AtomicInteger existing = counts.putIfAbsent(key, count);
+			if(existing != null)
+			{
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+		if(sinceAged.incrementAndGet() == AGE_INTERVAL)
+		{
+			ageCounts();
+		}
+
+		byte[] result = data.get(key);
+		if(result == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if(lock.tryLock())
+		{
+			try
+			{
+				lru.get(key);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Offers a picture that wasn't in the cache (after sending it). It is
+	 * read and added if it's popular enough.
+	 * @param key Key
+	 * @param file File containing picture
+	 * @param length Length of file
+	 */
+	void offer(String key, File file, int length)
+	{
+		if(length > maxSize / 4 || getCount(key) < MIN_FREQUENCY
+			|| !admit(key, length, false))
+		{
+			return;
+		}
+		byte[] bytes;
+		try
+		{
+			bytes = Util.loadBytes(file);
+		}
+		catch(IOException e)
+		{
+			// File has gone; it'll be sorted out next time it's requested
+			return;
+		}
+		if(bytes.length != length)
+		{
+			// File has changed
+			return;
+		}
+
+		lock.lock();
+		try
+		{
+			if(admit(key, length, true))
+			{
+				data.put(key, bytes);
+				lru.put(key, length);
+				size += length;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether a picture should be admitted, making space for it if
+	 * required.
+	 * @param key Key
+	 * @param length Length of data
+	 * @param evict True to actually evict pictures to make space (call with
+	 *   lock held); false to only check
+	 * @return True if the picture should be added
+	 */
+	private boolean admit(String key, int length, boolean evict)
+	{
+		if(!evict)
+		{
+			lock.lock();
+		}
+		try
+		{
+			if(lru.containsKey(key))
+			{
+				return false;
+			}
+			int frequency = getCount(key);
+			long available = maxSize - size;
+			Iterator<Map.Entry<String, Integer>> i = lru.entrySet().iterator();
+			while(available < length)
+			{
+				// Only replace pictures that are less popular than this one
+				Map.Entry<String, Integer> eldest = i.next();
+				if(getCount(eldest.getKey()) >= frequency)
+				{
+					return false;
+				}
+				available += eldest.getValue();
+				if(evict)
+				{
+					i.remove();
+					data.remove(eldest.getKey());
+					size -= eldest.getValue();
+					evictions.incrementAndGet();
+				}
+			}
+			return true;
+		}
+		finally
+		{
+			if(!evict)
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param key Key
+	 * @return Recent request count
+	 */
+	private int getCount(String key)
+	{
+		AtomicInteger count = counts.get(key);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Halves all request counts, forgetting any that reach zero.
+	 */
+	private void ageCounts()
+	{
+		sinceAged.set(0);
+		for(Iterator<AtomicInteger> i = counts.values().iterator(); i.hasNext();)
+		{
+			AtomicInteger count = i.next();
+			int halved = count.get() / 2;
+			count.set(halved);
+			if(halved == 0)
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of requests sent from memory
+	 */
+	long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of requests that had to read the file
+	 */
+	long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of pictures removed to make space
+	 */
+	long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return Total size of cached pictures in bytes
+	 */
+	long getSize()
+	{
+		lock.lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Maximum size in bytes
+	 */
+	long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return Number of pictures in cache
+	 */
+	int getCount()
+	{
+		return data.size();
+	}
+}
@@ -19,35 +19,68 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.picstory;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.Document;
+import org.w3c.dom.*;
 import org.xml.sax.*;
 
 /**
- * XML processor objects
+ * XML processor objects. These are thread-safe: each call borrows a parser
+ * or serialiser from a pool, and compiled stylesheets are shared.
  */
 public class XmlProcessors
 {
-	private DocumentBuilder db;
-	private TransformerFactory tf;
+	private final DocumentBuilderFactory dbf;
+	private final TransformerFactory tf;
+
+	/**
+	 * Parsers and serialisers not currently in use. These are pools rather
+	 * than thread-locals so that nothing is left on container threads (which
+	 * would keep the web application in memory after it is undeployed).
+	 */
+	private final Queue<DocumentBuilder> builders =
+		new ConcurrentLinkedQueue<DocumentBuilder>();
+	private final Queue<Transformer> identities =
+		new ConcurrentLinkedQueue<Transformer>();
+	private final Queue<Transformer> fragments =
+		new ConcurrentLinkedQueue<Transformer>();
+
+	private final ConcurrentMap<TemplateManager.Name, CompiledXsl> compiledXsl =
+		new ConcurrentHashMap<TemplateManager.Name, CompiledXsl>();
+
+	/**
+	 * A compiled XSL stylesheet and the template it came from.
+	 */
+	private static class CompiledXsl
+	{
+		private Template source;
+		private Templates templates;
+
+		CompiledXsl(Template source, Templates templates)
+		{
+			this.source = source;
+			this.templates = templates;
+		}
+	}
 
 	/**
 	 * @throws InternalException Any error obtaining processors
 	 */
 	public XmlProcessors() throws InternalException
 	{
+		dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		tf = TransformerFactory.newInstance();
 		try
 		{
-			DocumentBuilderFactory dbf;
-			dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(true);
-			db = dbf.newDocumentBuilder();
-			tf = TransformerFactory.newInstance();
+			// Check configuration now rather than on first use
+			builders.add(newDocumentBuilder());
 		}
 		catch(ParserConfigurationException pce)
 		{
@@ -55,6 +88,97 @@ public class XmlProcessors
 		}
 	}
 
+	/**
+	 * @return New document builder
+	 * @throws ParserConfigurationException Any error
+	 */
+	private DocumentBuilder newDocumentBuilder()
+		throws ParserConfigurationException
+	{
+		// Factories aren't guaranteed to be thread-safe
+		synchronized(dbf)
+		{
+			return dbf.newDocumentBuilder();
+		}
+	}
+
+	/**
+	 * @return Document builder from the pool, or a new one; pass it to
+	 *   {@link #release(DocumentBuilder)} afterwards
+	 * @throws InternalException Any error creating it
+	 */
+	private DocumentBuilder getBuilder() throws InternalException
+	{
+		DocumentBuilder builder = builders.poll();
+		if(builder == null)
+		{
+			try
+			{
+				builder = newDocumentBuilder();
+			}
+			catch(ParserConfigurationException e)
+			{
+				throw new InternalException(e);
+			}
+		}
+		return builder;
+	}
+
+	/**
+	 * Returns a document builder to the pool.
+	 * @param builder Builder
+	 */
+	private void release(DocumentBuilder builder)
+	{
+		builder.reset();
+		builders.offer(builder);
+	}
+
+	/**
+	 * @param pool Pool to take from
+	 * @param fragment True if a new transformer should omit the XML
+	 *   declaration
+	 * @return Transformer from the pool, or a new one; put it back in the
+	 *   same pool afterwards
+	 * @throws InternalException Any error creating it
+	 */
+	private Transformer getTransformer(Queue<Transformer> pool, boolean fragment)
+		throws InternalException
+	{
+		Transformer t = pool.poll();
+		if(t == null)
+		{
+			try
+			{
+				synchronized(tf)
+				{
+					t = tf.newTransformer();
+				}
+			}
+			catch(TransformerConfigurationException e)
+			{
+				throw new InternalException(e);
+			}
+			if(fragment)
+			{
+				t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Discards pooled objects and compiled stylesheets. Call when the servlet
+	 * is destroyed.
+	 */
+	public void close()
+	{
+		builders.clear();
+		identities.clear();
+		fragments.clear();
+		compiledXsl.clear();
+	}
+
 	/**
 	 * @param filename Name of file to report in errors
 	 * @param document String to parse
@@ -62,13 +186,14 @@ public class XmlProcessors
 	 * @throws InternalException Any error parsing
 	 * @throws IOException Probably never
 	 */
-	public synchronized Document parseString(String filename, String document)
+	public Document parseString(String filename, String document)
 		throws InternalException, IOException
 	{
 		Document d;
+		DocumentBuilder builder = getBuilder();
 		try
 		{
-			d = db.parse(new InputSource(new StringReader(document)));
+			d = builder.parse(new InputSource(new StringReader(document)));
 		}
 		catch(SAXParseException spe)
 		{
@@ -83,15 +208,28 @@ public class XmlProcessors
         "XML error in '" + filename + "': "
         + se.getMessage());
 		}
+		finally
+		{
+			release(builder);
+		}
 		return d;
 	}
 
 	/**
 	 * @return New empty XML document
+	 * @throws InternalException Any error creating a document builder
 	 */
-	public synchronized Document newDocument()
+	public Document newDocument() throws InternalException
 	{
-		return db.newDocument();
+		DocumentBuilder builder = getBuilder();
+		try
+		{
+			return builder.newDocument();
+		}
+		finally
+		{
+			release(builder);
+		}
 	}
 
 	/**
@@ -109,20 +247,24 @@ public class XmlProcessors
 	}
 
 	/**
-	 * Transforms a document.
-	 * @param xslDocument XSL document
+	 * Transforms a document using one of the XSL templates. The compiled
+	 * stylesheet is kept until the template manager supplies a different
+	 * template (i.e. after reload).
+	 * @param templates Template manager
+	 * @param name Name of XSL template
 	 * @param d Document to transform
 	 * @return Resulting document as XHTML string
 	 * @throws InternalException Any error parsing
-	 * @throws IOException Unlikely error
+	 * @throws IOException Error loading template
 	 */
-	public synchronized String transform(Document xslDocument, Document d)
+	public String transform(TemplateManager templates,
+		TemplateManager.Name name, Document d)
 		throws InternalException, IOException
 	{
 		StringWriter writer = new StringWriter();
 		try
 		{
-			Transformer t = tf.newTransformer(new DOMSource(xslDocument));
+			Transformer t = getCompiledXsl(templates, name).newTransformer();
 			t.transform(new DOMSource(d), new StreamResult(writer));
 		}
 		catch(TransformerException e)
@@ -133,18 +275,46 @@ public class XmlProcessors
 		return writer.toString();
 	}
 
+	/**
+	 * @param templates Template manager
+	 * @param name Name of XSL template
+	 * @return Compiled stylesheet for the current version of the template
+	 * @throws InternalException Any error parsing
+	 * @throws IOException Error loading template
+	 * @throws TransformerConfigurationException Error compiling XSL
+	 */
+	private Templates getCompiledXsl(TemplateManager templates,
+		TemplateManager.Name name)
+		throws InternalException, IOException, TransformerConfigurationException
+	{
+		Template template = templates.get(name);
+		CompiledXsl compiled = compiledXsl.get(name);
+		if(compiled == null || compiled.source != template)
+		{
+			Document xslDocument = parseString(name.getFilename(),
+				template.getString());
+			synchronized(tf)
+			{
+				compiled = new CompiledXsl(template,
+					tf.newTemplates(new DOMSource(xslDocument)));
+			}
+			compiledXsl.put(name, compiled);
+		}
+		return compiled.templates;
+	}
+
 	/**
 	 * Saves a document to a string.
 	 * @param d XML document
 	 * @return String for document
 	 * @throws InternalException Any error (unlikely)
 	 */
-	public synchronized String saveString(Document d) throws InternalException
+	public String saveString(Document d) throws InternalException
 	{
 		StringWriter writer = new StringWriter();
+		Transformer t = getTransformer(identities, false);
 		try
 		{
-			Transformer t = tf.newTransformer();
 			t.transform(new DOMSource(d), new StreamResult(writer));
 		}
 		catch(TransformerException e)
@@ -152,7 +322,37 @@ public class XmlProcessors
 			throw new InternalException(
 				"Transformation error: " + e.getMessageAndLocation(), e);
 		}
+		finally
+		{
+			identities.offer(t);
+		}
 		return writer.toString();
 	}
 
+	/**
+	 * Saves an element to a string without an XML declaration, so that it
+	 * takes as little space as possible when kept in memory.
+	 * @param e XML element
+	 * @return String for element
+	 * @throws InternalException Any error (unlikely)
+	 */
+	public String saveFragment(Element e) throws InternalException
+	{
+		StringWriter writer = new StringWriter();
+		Transformer t = getTransformer(fragments, true);
+		try
+		{
+			t.transform(new DOMSource(e), new StreamResult(writer));
+		}
+		catch(TransformerException x)
+		{
+			throw new InternalException(
+				"Transformation error: " + x.getMessageAndLocation(), x);
+		}
+		finally
+		{
+			fragments.offer(t);
+		}
+		return writer.toString();
+	}
 }
@@ -21,7 +21,7 @@
 <xsl:template match="folder">
   <li>
     <xsl:choose>
-      <xsl:when test="count(preceding::folder) mod 2 = 0">
+      <xsl:when test="position() mod 2 = 1">
         <xsl:attribute name="class">odd</xsl:attribute>
       </xsl:when>
       <xsl:otherwise>
@@ -33,9 +33,10 @@
 </xsl:template>
 
 <xsl:template match="pic">
+  <!-- Story sets id to picN (N counts from 0 in document order) -->
   <xsl:variable name="ODDEVEN">
     <xsl:choose>
-      <xsl:when test="count(preceding::pic) mod 2 = 0">
+      <xsl:when test="substring-after(@id, 'pic') mod 2 = 0">
         <xsl:text>odd</xsl:text>
       </xsl:when>
       <xsl:otherwise>